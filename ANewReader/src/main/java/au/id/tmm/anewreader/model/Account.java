@@ -18,11 +18,17 @@
 
 package au.id.tmm.anewreader.model;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Executor;
 
 import au.id.tmm.anewreader.model.net.ReaderServiceAuthenticationHelper;
+import au.id.tmm.anewreader.utility.ComposableFuture;
 
 public class Account implements Serializable {
 
@@ -30,7 +36,19 @@ public class Account implements Serializable {
 
     private ReaderServiceAuthenticationHelper authHelper;
 
-    private Model model = new Model(this);
+    private volatile Model model = new OnlineModel(this);
+
+    private SyncScheduler syncScheduler;
+
+    // The configuration given to the model, so that it can be given again if the model is replaced
+    // by useOfflineStore. Null where the model's default is used.
+    private File itemDiskCacheDirectory;
+    private Long itemCacheBudget;
+    private Long summaryCacheBudget;
+    private Long itemCacheTimeToLive;
+    private Executor asyncExecutor;
+
+    private ItemCacheStatsLog itemCacheStatsLog;
 
     private String username;
 
@@ -44,6 +62,79 @@ public class Account implements Serializable {
         this(username, readerService, ReaderServiceAuthenticationHelper.generate(readerService));
     }
 
+    /**
+     * Serves the Feeds and Items of this Account from a store in the given directory where
+     * possible, so that they can be displayed without waiting on the network. The directory must
+     * only be used by this Account, eg a subdirectory named by {@link #getStorageName}.
+     * <p/>
+     * This replaces the model of this Account. The configuration already given to this Account,
+     * such as its item cache budget and disk cache, is given to the new model, but any Feeds
+     * already retrieved from this Account remain with the old one. This must therefore be called
+     * before any Feeds are retrieved, and throws an IllegalStateException if the SyncScheduler of
+     * this Account has already been retrieved.
+     */
+    public synchronized void useOfflineStore(File storeDirectory) {
+        if (this.syncScheduler != null) {
+            throw new IllegalStateException("The offline store must be used before the "
+                    + "SyncScheduler is retrieved");
+        }
+
+        Model offlineModel = new OfflineModel(this, storeDirectory);
+
+        if (this.itemDiskCacheDirectory != null) {
+            offlineModel.useItemDiskCache(this.itemDiskCacheDirectory);
+        }
+        if (this.itemCacheBudget != null) {
+            offlineModel.setItemCacheBudget(this.itemCacheBudget);
+        }
+        if (this.summaryCacheBudget != null) {
+            offlineModel.setSummaryCacheBudget(this.summaryCacheBudget);
+        }
+        if (this.itemCacheTimeToLive != null) {
+            offlineModel.setItemCacheTimeToLive(this.itemCacheTimeToLive);
+        }
+        if (this.asyncExecutor != null) {
+            offlineModel.setAsyncExecutor(this.asyncExecutor);
+        }
+
+        this.model = offlineModel;
+    }
+
+    /**
+     * Returns a name identifying the user and service of this Account, which can be used as a
+     * file name, so that what different Accounts store on the device is kept apart.
+     */
+    public String getStorageName() {
+        try {
+            return URLEncoder.encode(this.username + "@" + this.readerService.getBaseUrl(),
+                    "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // This should never occur, so thrown as a RuntimeException
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Keeps the Items of this Account in the given directory once they are evicted from memory,
+     * and between sessions, so that they are read from disk rather than retrieved again from the
+     * api. The directory must only be used by this Account, as for {@link #useOfflineStore}.
+     */
+    public synchronized void useItemDiskCache(File directory) {
+        this.itemDiskCacheDirectory = directory;
+        this.model.useItemDiskCache(directory);
+    }
+
+    /**
+     * Returns the scheduler for synchronising this Account in the background. It isn't started
+     * until {@link SyncScheduler#start} is called.
+     */
+    public synchronized SyncScheduler getSyncScheduler() {
+        if (this.syncScheduler == null) {
+            this.syncScheduler = new SyncScheduler(this.model);
+        }
+        return this.syncScheduler;
+    }
+
     public void authenticate(String password) throws IOException {
         this.authHelper.invalidateToken();
         this.authHelper.authenticate(this.username, password);
@@ -85,6 +176,103 @@ public class Account implements Serializable {
         return this.model.getReadingList(title);
     }
 
+    /**
+     * Retrieves the unread counts of all Feeds, and updates the Feeds accordingly. Note that this
+     * method performs a network operation, so can't be run on the UI thread.
+     */
+    public void refreshUnreadCounts() throws IOException {
+        this.model.refreshUnreadCounts();
+    }
+
+    /**
+     * Sends any changes to the read status of Items that are yet to be sent to the api. These are
+     * otherwise sent in the background shortly after they are made. Note that this method performs
+     * a network operation, so can't be run on the UI thread.
+     */
+    public void flushReadStatusChanges() throws IOException {
+        this.model.flushReadStatusChanges();
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by the Items this Account caches in memory,
+     * excluding their summaries. The least recently used Items are evicted beyond this.
+     */
+    public synchronized void setItemCacheBudget(long maxBytes) {
+        this.model.setItemCacheBudget(maxBytes);
+        this.itemCacheBudget = maxBytes;
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by the summaries of the Items this Account
+     * caches. Summaries evicted beyond this are loaded again from disk or the api when displayed.
+     */
+    public synchronized void setSummaryCacheBudget(long maxBytes) {
+        this.model.setSummaryCacheBudget(maxBytes);
+        this.summaryCacheBudget = maxBytes;
+    }
+
+    /**
+     * Sets the time in milliseconds after which Items this Account caches in memory are retrieved
+     * again from the api, in case they have changed. By default, or if this is zero, Items are
+     * only retrieved again when a newer copy is received with a page of Items.
+     */
+    public synchronized void setItemCacheTimeToLive(long timeToLiveMillis) {
+        this.model.setItemCacheTimeToLive(timeToLiveMillis);
+        this.itemCacheTimeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the Items this Account caches, such as how many
+     * lookups hit the cache and how long it takes to retrieve those that miss from the api.
+     */
+    public ItemCacheStats getItemCacheStats() {
+        return this.model.getItemCacheStats();
+    }
+
+    /**
+     * Appends a snapshot of the item cache statistics to the given file at the given interval,
+     * until {@link #stopItemCacheStatsLog} is called.
+     */
+    public synchronized void startItemCacheStatsLog(File logFile, long intervalMillis) {
+        this.stopItemCacheStatsLog();
+        this.itemCacheStatsLog = new ItemCacheStatsLog(this, logFile, intervalMillis);
+        this.itemCacheStatsLog.start();
+    }
+
+    public synchronized void stopItemCacheStatsLog() {
+        if (this.itemCacheStatsLog != null) {
+            this.itemCacheStatsLog.stop();
+            this.itemCacheStatsLog = null;
+        }
+    }
+
+    /*** Asynchronous methods ***/
+
+    // Each of these performs the corresponding blocking method on the async executor, so they can
+    // be called from the UI thread. Several can be run at once and their results combined using
+    // ComposableFuture.allOf.
+
+    public ComposableFuture<SortedSet<Category>> getCategoriesAsync() {
+        return this.model.getCategoriesAsync();
+    }
+
+    public ComposableFuture<SortedSet<Subscription>> getSubscriptionsAsync() {
+        return this.model.getSubscriptionsAsync();
+    }
+
+    public ComposableFuture<Void> refreshUnreadCountsAsync() {
+        return this.model.refreshUnreadCountsAsync();
+    }
+
+    /**
+     * Sets the Executor on which the asynchronous methods of this Account and its Feeds are run.
+     * By default a small dedicated thread pool is used.
+     */
+    public synchronized void setAsyncExecutor(Executor asyncExecutor) {
+        this.model.setAsyncExecutor(asyncExecutor);
+        this.asyncExecutor = asyncExecutor;
+    }
+
     void setToken(String token) {
         this.authHelper = ReaderServiceAuthenticationHelper.generate(this.readerService, token);
     }
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+/**
+ * Tracks the recent hit ratio of the {@link au.id.tmm.anewreader.model.ItemCache}, that is, the
+ * proportion of item ids looked up in the cache that were found there. The ratio is a moving
+ * average weighted towards the most recently retrieved pages, so that it follows changes such as
+ * switching to a feed that hasn't been viewed before. It starts at zero, reflecting an empty cache.
+ */
+class CacheHitRatio {
+
+    private static final double LATEST_PAGE_WEIGHT = 0.5;
+
+    private double hitRatio = 0;
+
+    /**
+     * Records the lookups for a page of items.
+     */
+    protected synchronized void record(int numHits, int numLookups) {
+        if (numLookups > 0) {
+            this.hitRatio = LATEST_PAGE_WEIGHT * ((double) numHits / numLookups)
+                    + (1 - LATEST_PAGE_WEIGHT) * this.hitRatio;
+        }
+    }
+
+    protected synchronized double get() {
+        return this.hitRatio;
+    }
+
+}
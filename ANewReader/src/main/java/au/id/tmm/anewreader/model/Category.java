@@ -82,4 +82,9 @@ public class Category extends Feed implements Comparable<Category>, Serializable
     String getFeedAddress() {
         return this.id;
     }
+
+    @Override
+    boolean containsSubscription(Subscription subscription) {
+        return subscription.getCategories().contains(this);
+    }
 }
@@ -35,4 +35,23 @@ public class Continuation {
     protected long getCode() {
         return continuation;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Continuation that = (Continuation) o;
+
+        if (continuation != that.continuation) return false;
+        return !(associatedFeed != null ? !associatedFeed.equals(that.associatedFeed) : that.associatedFeed != null);
+
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (continuation ^ (continuation >>> 32));
+        result = 31 * result + (associatedFeed != null ? associatedFeed.hashCode() : 0);
+        return result;
+    }
 }
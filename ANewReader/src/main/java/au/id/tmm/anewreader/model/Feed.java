@@ -23,6 +23,8 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Date;
 
+import au.id.tmm.anewreader.utility.ComposableFuture;
+
 public abstract class Feed {
 
     private static final int DEFAULT_NUM_ITEM_LIMIT = 20;
@@ -36,11 +38,11 @@ public abstract class Feed {
         this.unreadCount = unreadCount;
     }
 
-    public int getUnreadCount() {
+    public synchronized int getUnreadCount() {
         return this.unreadCount;
     }
 
-    protected void setUnreadCount(int unreadCount) {
+    protected synchronized void setUnreadCount(int unreadCount) {
         this.unreadCount = unreadCount;
     }
 
@@ -52,6 +54,11 @@ public abstract class Feed {
 
     abstract String getFeedAddress();
 
+    /**
+     * Returns true if the Items of the given Subscription belong to this Feed.
+     */
+    abstract boolean containsSubscription(Subscription subscription);
+
     String getEncodedFeedAddress() {
         try {
             return URLEncoder.encode(this.getFeedAddress(), "UTF-8");
@@ -97,4 +104,72 @@ public abstract class Feed {
         return this.parentModel.getItems(this, readStatus, numItemsLimit, olderThan, continuation);
     }
 
+    /**
+     * Returns the Items in this Feed crawled after newerThan, for refreshing a list of Items that
+     * has already been loaded. If there are more than numItemsLimit such Items, the returned list
+     * has a continuation.
+     */
+    public ListWithContinuation<Item> getItemsNewerThan(ReadStatus readStatus, Date newerThan, int numItemsLimit) throws IOException {
+        return this.parentModel.getItems(this, readStatus, numItemsLimit, null, newerThan, null);
+    }
+
+    /**
+     * Marks the given Item as read. The change is made locally straight away, and sent to the api
+     * in the background, so this method can be called from the UI thread.
+     */
+    public void markAsRead(Item item) {
+        this.parentModel.changeReadStatus(item, ReadStatus.READ);
+    }
+
+    /**
+     * Marks the given Item as unread, as per {@link #markAsRead}.
+     */
+    public void markAsUnread(Item item) {
+        this.parentModel.changeReadStatus(item, ReadStatus.UNREAD);
+    }
+
+    /**
+     * Marks every Item in this Feed crawled no later than olderThan as read, or every Item if
+     * olderThan is null. This is done in a single request to the api, and the Items we already
+     * have and the unread counts are updated straight away. Note that this method performs a
+     * network operation, so can't be run on the UI thread.
+     */
+    public void markAllAsRead(Date olderThan) throws IOException {
+        this.parentModel.markAllAsRead(this, olderThan);
+    }
+
+    public ComposableFuture<Void> markAllAsReadAsync(Date olderThan) {
+        return this.parentModel.markAllAsReadAsync(this, olderThan);
+    }
+
+    /**
+     * Asynchronous variant of {@link #getItems(ReadStatus, Continuation)}, run on the Account's
+     * async executor.
+     */
+    public ComposableFuture<ListWithContinuation<Item>> getItemsAsync(ReadStatus readStatus, Continuation continuation) {
+        return this.getItemsAsync(readStatus, null, DEFAULT_NUM_ITEM_LIMIT, continuation);
+    }
+
+    public ComposableFuture<ListWithContinuation<Item>> getItemsAsync(ReadStatus readStatus, Date olderThan, int numItemsLimit, Continuation continuation) {
+        return this.parentModel.getItemsAsync(this, readStatus, numItemsLimit, olderThan, continuation);
+    }
+
+    /**
+     * Returns an Iterator over every Item in this Feed, retrieving pages of Items only as they are
+     * needed.
+     */
+    public FeedItemIterator stream(ReadStatus readStatus) {
+        return this.stream(readStatus, null, DEFAULT_NUM_ITEM_LIMIT, 0);
+    }
+
+    /**
+     * Returns an Iterator over every Item in this Feed, retrieving pages of the given size as they
+     * are needed. Up to readAheadDepth pages beyond the next one are retrieved in the background
+     * on the Account's async executor.
+     */
+    public FeedItemIterator stream(ReadStatus readStatus, Date olderThan, int pageSize, int readAheadDepth) {
+        return new FeedItemIterator(this, readStatus, olderThan, pageSize, readAheadDepth,
+                this.parentModel.getAsyncExecutor());
+    }
+
 }
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+
+import au.id.tmm.anewreader.utility.ComposableFuture;
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+
+/**
+ * Iterator over all the Items in a Feed. Pages of Items are retrieved lazily, following the
+ * Continuation of each page, so only the current page is held in memory no matter how many Items
+ * the Feed has.
+ * <p/>
+ * Optionally, a number of pages beyond the current one can be retrieved in the background, so that
+ * the next page is usually available by the time the consumer reaches the end of the current one.
+ * <p/>
+ * Since the Iterator interface doesn't allow checked exceptions, an IOException encountered while
+ * retrieving a page is thrown from hasNext or next wrapped in a FeedStreamException.
+ */
+public class FeedItemIterator implements Iterator<Item> {
+
+    private Feed feed;
+    private ReadStatus readStatus;
+    private Date olderThan;
+    private int pageSize;
+    private int readAheadDepth;
+    private Executor executor;
+
+    private Iterator<Item> currentPage = Collections.<Item>emptyList().iterator();
+    private Continuation nextContinuation = null;
+    private boolean started = false;
+    private boolean lastPageReached = false;
+
+    // The pages after the current one that have been requested, in order. Each is requested once
+    // the page before it has arrived.
+    private LinkedList<ComposableFuture<ListWithContinuation<Item>>> requestedPages
+            = new LinkedList<ComposableFuture<ListWithContinuation<Item>>>();
+
+    /**
+     * Full constructor. If readAheadDepth is zero, each page is retrieved on the consuming thread
+     * when it is reached. Otherwise up to readAheadDepth pages beyond the next are retrieved on the
+     * given Executor.
+     */
+    FeedItemIterator(Feed feed, ReadStatus readStatus, Date olderThan, int pageSize,
+                     int readAheadDepth, Executor executor) {
+        if (readAheadDepth < 0) {
+            throw new IllegalArgumentException("Read ahead depth cannot be negative, was "
+                    + readAheadDepth);
+        }
+        this.feed = feed;
+        this.readStatus = readStatus;
+        this.olderThan = olderThan;
+        this.pageSize = pageSize;
+        this.readAheadDepth = readAheadDepth;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!this.currentPage.hasNext()) {
+                if (this.lastPageReached) {
+                    return false;
+                }
+
+                ListWithContinuation<Item> page = this.retrieveNextPage();
+
+                this.currentPage = page.getList().iterator();
+                this.nextContinuation = page.getContinuation();
+
+                if (this.nextContinuation == null) {
+                    this.lastPageReached = true;
+                    this.cancel();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new FeedStreamException(e);
+        }
+    }
+
+    @Override
+    public Item next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.currentPage.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Abandons any pages being retrieved in the background. Items already retrieved can still be
+     * iterated over.
+     */
+    public void cancel() {
+        ConcurrencyUtils.cancelAll(this.requestedPages);
+        this.requestedPages.clear();
+    }
+
+    private ListWithContinuation<Item> retrieveNextPage() throws IOException {
+        if (this.readAheadDepth == 0) {
+            Continuation continuation = this.started ? this.nextContinuation : null;
+            this.started = true;
+            return this.feed.getItems(this.readStatus, this.olderThan, this.pageSize,
+                    continuation);
+        }
+
+        if (!this.started) {
+            this.requestedPages.add(this.feed.getItemsAsync(this.readStatus, this.olderThan,
+                    this.pageSize, null));
+            this.started = true;
+        }
+
+        // The next page, plus readAheadDepth pages beyond it.
+        while (this.requestedPages.size() < this.readAheadDepth + 1) {
+            this.requestedPages.add(this.requestedPages.getLast().then(
+                    new FollowingPageRetrieval(), this.executor));
+        }
+
+        return ConcurrencyUtils.getResult(this.requestedPages.removeFirst());
+    }
+
+    /**
+     * Retrieves the page following a given page, or an empty page if there isn't one.
+     */
+    private class FollowingPageRetrieval
+            implements ComposableFuture.Transformation<ListWithContinuation<Item>,
+            ListWithContinuation<Item>> {
+
+        @Override
+        public ListWithContinuation<Item> apply(ListWithContinuation<Item> previousPage)
+                throws IOException {
+            if (previousPage.getContinuation() == null) {
+                return new ListWithContinuation<Item>(Collections.<Item>emptyList(), null);
+            }
+            return feed.getItems(readStatus, olderThan, pageSize, previousPage.getContinuation());
+        }
+    }
+
+    /**
+     * Exception wrapping an IOException encountered while retrieving a page of Items.
+     */
+    public static class FeedStreamException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public FeedStreamException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+}
@@ -18,50 +18,59 @@
 
 package au.id.tmm.anewreader.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Set;
 
 /**
- * Class representing an item in a Feed, ie an individual post.
+ * Class representing an item in a Feed, ie an individual post. Items are immutable, other than
+ * their read status, which is held in the {@link ReadStates} of the Model they came from and
+ * shared by every copy of the Item.
+ * <p/>
+ * An Item is a lightweight header, holding what is needed to list it. Its summary is held in the
+ * {@link ItemSummaries} of its Model, and is loaded again if it has been evicted from memory.
  */
 public class Item implements Comparable<Item>, Serializable {
 
-    private String id;
-    private String title;
-    private String canonicalLink;
-    private String alternateLink;
-    private Date publishedTimestamp;
-    private Date updatedTimestamp;
-    private Date crawlTimestamp;
-    private String summary;
-    private String author;
-    private Set<Category> categories;
-    private Subscription parentSubscription;
-    private ReadStatus readStatus;
+    private final String id;
+    private final String title;
+    private final String canonicalLink;
+    private final String alternateLink;
+    private final Date publishedTimestamp;
+    private final Date updatedTimestamp;
+    private final Date crawlTimestamp;
+    private final String author;
+    private final Set<Category> categories;
+    private final Subscription parentSubscription;
+    private final int index;
+    private final ItemSummaries summaries;
+    private final ReadStates readStates;
 
     /**
-     * Full constructor.
+     * Full constructor. The index is that of the id, as acquired from the Model's {@link ItemIds}.
      */
-    public Item(String id, String title, String canonicalLink,
-                String alternateLink, Date publishedTimestamp,
-                Date updatedTimestamp, Date crawlTimestamp,
-                String summary, String author,
-                Set<Category> categories,
-                Subscription parentSubscription,
-                ReadStatus readStatus) {
+    Item(String id, int index, String title, String canonicalLink,
+         String alternateLink, Date publishedTimestamp,
+         Date updatedTimestamp, Date crawlTimestamp,
+         String author,
+         Set<Category> categories,
+         Subscription parentSubscription,
+         ItemSummaries summaries,
+         ReadStates readStates) {
         this.id = id;
+        this.index = index;
         this.title = title;
         this.canonicalLink = canonicalLink;
         this.alternateLink = alternateLink;
         this.publishedTimestamp = publishedTimestamp;
         this.updatedTimestamp = updatedTimestamp;
         this.crawlTimestamp = crawlTimestamp;
-        this.summary = summary;
         this.author = author;
         this.categories = categories;
         this.parentSubscription = parentSubscription;
-        this.readStatus = readStatus;
+        this.summaries = summaries;
+        this.readStates = readStates;
     }
 
     /*** Accessors and mutators ***/
@@ -94,8 +103,19 @@ public class Item implements Comparable<Item>, Serializable {
         return this.crawlTimestamp;
     }
 
-    public String getSummary() {
-        return this.summary;
+    /**
+     * Returns the summary of this Item, loading it from disk or the api if it isn't in memory.
+     * Note that this method may perform a network operation, so can't be run on the UI thread.
+     */
+    public String getSummary() throws IOException {
+        return this.summaries.get(this);
+    }
+
+    /**
+     * Returns the summary of this Item if it is in memory, or null if it would need to be loaded.
+     */
+    public String getLoadedSummary() {
+        return this.summaries.getIfLoaded(this.index);
     }
 
     public Set<Category> getCategories() {
@@ -110,12 +130,12 @@ public class Item implements Comparable<Item>, Serializable {
         return this.parentSubscription;
     }
 
-    public void setReadStatus(ReadStatus readStatus) {
-        this.readStatus = readStatus;
+    public ReadStatus getReadStatus() {
+        return this.readStates.get(this);
     }
 
-    public ReadStatus getReadStatus() {
-        return readStatus;
+    int getIndex() {
+        return this.index;
     }
 
     /*** Utility methods ***/
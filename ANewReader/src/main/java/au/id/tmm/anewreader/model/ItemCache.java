@@ -18,35 +18,582 @@
 
 package au.id.tmm.anewreader.model;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.id.tmm.anewreader.utility.IntLinkedHashMap;
 
 /**
  * Cache to store {@link au.id.tmm.anewreader.model.Item}s that have already been retrieved
  * from the api, so as to minimise requests for Item content.
+ * <p/>
+ * The cache is bounded by an estimate of the memory used by its Items rather than by their
+ * number, as titles and links vary in length. Summaries are held separately, in
+ * {@link ItemSummaries}, so aren't counted. When the budget is exceeded, the least recently used
+ * Items are evicted.
+ * <p/>
+ * Items are keyed by the index of their id, as acquired from {@link ItemIds}, so that lookups by
+ * index neither hash Strings nor allocate. The ids given to {@link #getOrLoad} are resolved to
+ * their indexes once, on the way in.
+ * <p/>
+ * The cache may be used from any number of threads. Items are spread across segments by index,
+ * each with its own lock and an equal share of the budget, so that threads working on different
+ * Items rarely contend. Items can be retrieved with {@link #getOrLoad}, which ensures that an Item
+ * missing from the cache is only loaded once however many threads ask for it at the same time.
+ * <p/>
+ * Cached Items are versioned by their updated timestamp, so that putting a newer copy of an Item
+ * replaces the cached one while putting the same or an older copy leaves it in place. Items may
+ * also be given a time to live, after which they are treated as missing and loaded again.
+ * <p/>
+ * Lookups through {@link #getOrLoad}, puts and evictions are counted, so that the effectiveness of
+ * the cache can be measured.
  */
 class ItemCache {
 
-    private Map<String, Item> items;
+    private static final long DEFAULT_MAX_WEIGHT_BYTES = 4 * 1024 * 1024;
+
+    // A power of two, so that the segment of an index can be found by masking it.
+    private static final int NUM_SEGMENTS = 8;
+
+    protected static final long NO_TIME_TO_LIVE = 0;
+
+    // A rough allowance for the Item object itself, its id, links, timestamps and the cache entry.
+    private static final int ITEM_OVERHEAD_BYTES = 512;
+
+    private Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    private ItemIds itemIds;
+
+    private volatile long maxWeight;
+
+    private volatile long timeToLiveMillis = NO_TIME_TO_LIVE;
+
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong putCount = new AtomicLong();
+    private AtomicLong skippedPutCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
 
     /*** Constructors ***/
 
-    protected ItemCache(Map<String, Item> items) {
-        this.items = items;
+    protected ItemCache(ItemIds itemIds, long maxWeight) {
+        this.itemIds = itemIds;
+        this.maxWeight = maxWeight;
+
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            this.segments[i] = new Segment(maxWeight / NUM_SEGMENTS);
+        }
     }
 
-    protected ItemCache() {
-        this(new HashMap<String, Item>());
+    protected ItemCache(ItemIds itemIds) {
+        this(itemIds, DEFAULT_MAX_WEIGHT_BYTES);
     }
 
     /*** Accessors and mutators ***/
 
+    /**
+     * Caches the given Item unless a copy updated no earlier than it is already cached, returning
+     * whichever copy is now cached.
+     */
     protected Item put(Item newItem) {
-        return this.items.put(newItem.getId(), newItem);
+        return this.getSegment(newItem.getIndex()).put(newItem, System.currentTimeMillis(),
+                this.getExpiryTime());
+    }
+
+    /**
+     * Returns the cached Item with the given index, or null if it isn't cached or has expired.
+     */
+    protected Item get(int index) {
+        return this.getSegment(index).get(index, this.getExpiryTime());
+    }
+
+    /**
+     * Returns the Items with the given ids, in the same order, loading those that aren't cached
+     * with the given loader in a single call. If another thread is already loading one of the
+     * Items, it is waited for rather than loaded again. Loaded Items are added to the cache. Ids
+     * for which no Item could be loaded have null in their place.
+     */
+    protected List<Item> getOrLoad(List<String> ids, Loader loader) throws IOException {
+        List<Item> returnedItems = new ArrayList<Item>(Collections.nCopies(ids.size(), (Item) null));
+
+        // The indexes of the ids are held until we return, so that they aren't reused for other
+        // ids while their Items are loaded.
+        int[] indexes = this.itemIds.acquire(ids);
+
+        try {
+            this.getOrLoad(ids, indexes, loader, returnedItems);
+        } finally {
+            this.itemIds.release(indexes);
+        }
+
+        return returnedItems;
+    }
+
+    private void getOrLoad(List<String> ids, int[] indexes, Loader loader,
+                           List<Item> returnedItems) throws IOException {
+        // The loads started by this call, by the index of the Item being loaded, and those started
+        // elsewhere that we must wait for, by the position of their Item in returnedItems.
+        IntLinkedHashMap<OwnLoad> ownLoads = new IntLinkedHashMap<OwnLoad>();
+        IntLinkedHashMap<PendingLoad> otherLoads = new IntLinkedHashMap<PendingLoad>();
+
+        long expiryTime = this.getExpiryTime();
+
+        for (int i = 0; i < ids.size(); i++) {
+            int currentIndex = indexes[i];
+            Segment segment = this.getSegment(currentIndex);
+
+            // A load puts its Items before it is finished, under the same lock, so an Item that
+            // isn't cached is either being loaded or must be loaded by us.
+            synchronized (segment) {
+                Item cachedItem = segment.get(currentIndex, expiryTime);
+
+                if (cachedItem != null) {
+                    this.hitCount.incrementAndGet();
+                    returnedItems.set(i, cachedItem);
+                    continue;
+                }
+
+                PendingLoad existingLoad = segment.pendingLoads.get(currentIndex);
+
+                if (existingLoad != null) {
+                    otherLoads.put(i, existingLoad);
+                } else {
+                    PendingLoad newLoad = new PendingLoad();
+                    segment.pendingLoads.put(currentIndex, newLoad);
+                    ownLoads.put(currentIndex, new OwnLoad(ids.get(i), currentIndex, i, newLoad));
+                }
+            }
+
+            this.missCount.incrementAndGet();
+        }
+
+        if (!ownLoads.isEmpty()) {
+            this.load(ownLoads, loader, returnedItems);
+        }
+
+        for (int i = 0; i < ids.size(); i++) {
+            PendingLoad currentLoad = otherLoads.get(i);
+
+            if (currentLoad != null) {
+                returnedItems.set(i, currentLoad.await());
+            }
+        }
+    }
+
+    /**
+     * Loads the Items of the given pending loads, caching them and completing the loads.
+     */
+    private void load(IntLinkedHashMap<OwnLoad> loads, Loader loader, List<Item> returnedItems)
+            throws IOException {
+        List<String> ids = new ArrayList<String>(loads.size());
+
+        for (OwnLoad currentLoad : loads) {
+            ids.add(currentLoad.id);
+        }
+
+        try {
+            for (Item loadedItem : loader.load(ids)) {
+                Item currentItem = this.put(loadedItem);
+
+                OwnLoad load = loads.get(currentItem.getIndex());
+                if (load != null) {
+                    load.pendingLoad.complete(currentItem);
+                    returnedItems.set(load.position, currentItem);
+                }
+            }
+        } catch (IOException e) {
+            this.failAll(loads, e);
+            throw e;
+        } catch (RuntimeException e) {
+            this.failAll(loads, e);
+            throw e;
+        } catch (Error e) {
+            this.failAll(loads, e);
+            throw e;
+        } finally {
+            for (OwnLoad currentLoad : loads) {
+                // Any Item the loader didn't return is missing.
+                currentLoad.pendingLoad.complete(null);
+                this.getSegment(currentLoad.index).finishLoad(currentLoad.index,
+                        currentLoad.pendingLoad);
+            }
+        }
+    }
+
+    private void failAll(IntLinkedHashMap<OwnLoad> loads, Throwable cause) {
+        for (OwnLoad currentLoad : loads) {
+            currentLoad.pendingLoad.fail(cause);
+        }
+    }
+
+    /**
+     * Returns a copy of the list of cached Items, including any that have expired.
+     */
+    protected List<Item> getItems() {
+        List<Item> returnedItems = new ArrayList<Item>();
+
+        for (Segment currentSegment : this.segments) {
+            currentSegment.addItemsTo(returnedItems);
+        }
+
+        return returnedItems;
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by the cached Items, evicting Items if the
+     * cache is now over budget.
+     */
+    protected void setMaxWeight(long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.maxWeight = maxWeight;
+
+        for (Segment currentSegment : this.segments) {
+            currentSegment.setMaxWeight(maxWeight / NUM_SEGMENTS);
+        }
+    }
+
+    protected long getMaxWeight() {
+        return this.maxWeight;
     }
 
-    protected Item get(String id) {
-        return this.items.get(id);
+    /*** Statistics ***/
+
+    /**
+     * Records lookups of Items retrieved without going through {@link #getOrLoad}, such as those
+     * retrieved in full from the api regardless of whether they were cached.
+     */
+    protected void recordLookups(int numHits, int numMisses) {
+        this.hitCount.addAndGet(numHits);
+        this.missCount.addAndGet(numMisses);
+    }
+
+    /**
+     * Returns the number of ids looked up that were found in the cache.
+     */
+    protected long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Returns the number of ids looked up that had to be loaded, whether by the calling thread or
+     * another.
+     */
+    protected long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Returns the number of Items that have been put in the cache, excluding those skipped because
+     * a copy no older was already cached.
+     */
+    protected long getPutCount() {
+        return this.putCount.get();
+    }
+
+    protected long getSkippedPutCount() {
+        return this.skippedPutCount.get();
+    }
+
+    /**
+     * Returns the number of Items evicted to keep within the budget, or because they expired.
+     */
+    protected long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Returns the number of Items cached, including any that have expired.
+     */
+    protected int size() {
+        int size = 0;
+
+        for (Segment currentSegment : this.segments) {
+            size += currentSegment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Sets the time in milliseconds after being cached that an Item expires, or
+     * {@link #NO_TIME_TO_LIVE} if Items shouldn't expire. Putting an identical copy of a cached
+     * Item restarts its time to live.
+     */
+    protected void setTimeToLive(long timeToLiveMillis) {
+        if (timeToLiveMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    protected long getTimeToLive() {
+        return this.timeToLiveMillis;
+    }
+
+    /**
+     * Returns the estimated memory in bytes used by the cached Items.
+     */
+    protected long getTotalWeight() {
+        long totalWeight = 0;
+
+        for (Segment currentSegment : this.segments) {
+            totalWeight += currentSegment.getTotalWeight();
+        }
+
+        return totalWeight;
+    }
+
+    /**
+     * Returns the time before which Items must have been cached to have expired.
+     */
+    private long getExpiryTime() {
+        long timeToLiveMillis = this.timeToLiveMillis;
+
+        return timeToLiveMillis != NO_TIME_TO_LIVE
+                ? System.currentTimeMillis() - timeToLiveMillis
+                : Long.MIN_VALUE;
+    }
+
+    private Segment getSegment(int index) {
+        // Indexes are handed out consecutively, so are spread evenly across the segments.
+        return this.segments[index & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+     * Estimates the memory in bytes used by an Item, being its fixed overhead and its text, which
+     * takes two bytes per character.
+     */
+    private static long getWeight(Item item) {
+        return ITEM_OVERHEAD_BYTES + 2L * (length(item.getTitle())
+                + length(item.getAuthor()));
+    }
+
+    private static int length(String string) {
+        return string != null ? string.length() : 0;
+    }
+
+    /**
+     * Returns the updated timestamp of the given Item in milliseconds, treating Items without one
+     * as older than any other.
+     */
+    private static long getVersion(Item item) {
+        return item.getUpdatedTimestamp() != null
+                ? item.getUpdatedTimestamp().getTime()
+                : Long.MIN_VALUE;
+    }
+
+    /**
+     * Loads the Items missing from the cache, eg from the api.
+     */
+    protected static interface Loader {
+
+        /**
+         * Returns the Items with the given ids, in any order. Items which can't be found may be
+         * omitted.
+         */
+        public List<Item> load(List<String> ids) throws IOException;
+    }
+
+    /**
+     * A share of the cached Items, with its own lock and budget, evicting its least recently used
+     * Items when over budget.
+     */
+    private class Segment {
+
+        // Entries by the index of their Item, held in access order, so the least recently used
+        // Item is first.
+        private IntLinkedHashMap<Entry> entries = new IntLinkedHashMap<Entry>(true);
+
+        // Loads in progress, by the index of the Item being loaded.
+        private IntLinkedHashMap<PendingLoad> pendingLoads = new IntLinkedHashMap<PendingLoad>();
+
+        private long maxWeight;
+        private long totalWeight = 0;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        private synchronized Item put(Item newItem, long currentTime, long expiryTime) {
+            Entry existingEntry = this.entries.get(newItem.getIndex());
+
+            if (existingEntry != null && existingEntry.cachedTime >= expiryTime) {
+                long existingVersion = getVersion(existingEntry.item);
+                long newVersion = getVersion(newItem);
+
+                if (newVersion == existingVersion) {
+                    // The cached copy is confirmed to be current.
+                    existingEntry.cachedTime = currentTime;
+                    skippedPutCount.incrementAndGet();
+                    return existingEntry.item;
+                } else if (newVersion < existingVersion) {
+                    skippedPutCount.incrementAndGet();
+                    return existingEntry.item;
+                }
+            }
+
+            if (existingEntry != null) {
+                this.totalWeight -= getWeight(existingEntry.item);
+            }
+
+            this.entries.put(newItem.getIndex(), new Entry(newItem, currentTime));
+            this.totalWeight += getWeight(newItem);
+            putCount.incrementAndGet();
+
+            this.evictToWeight(this.maxWeight);
+
+            return newItem;
+        }
+
+        private synchronized Item get(int index, long expiryTime) {
+            Entry entry = this.entries.get(index);
+
+            if (entry == null) {
+                return null;
+            } else if (entry.cachedTime < expiryTime) {
+                this.entries.remove(index);
+                this.totalWeight -= getWeight(entry.item);
+                evictionCount.incrementAndGet();
+                return null;
+            } else {
+                return entry.item;
+            }
+        }
+
+        private synchronized void finishLoad(int index, PendingLoad load) {
+            if (this.pendingLoads.get(index) == load) {
+                this.pendingLoads.remove(index);
+            }
+        }
+
+        private synchronized void addItemsTo(List<Item> list) {
+            for (Entry currentEntry : this.entries) {
+                list.add(currentEntry.item);
+            }
+        }
+
+        private synchronized void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.evictToWeight(maxWeight);
+        }
+
+        private synchronized long getTotalWeight() {
+            return this.totalWeight;
+        }
+
+        private synchronized int size() {
+            return this.entries.size();
+        }
+
+        /**
+         * Evicts the least recently used Items until the total weight is no more than the given
+         * weight.
+         */
+        private void evictToWeight(long weight) {
+            Iterator<Entry> iterator = this.entries.iterator();
+
+            while (this.totalWeight > weight && iterator.hasNext()) {
+                this.totalWeight -= getWeight(iterator.next().item);
+                iterator.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A cached Item, and the time at which it was cached.
+     */
+    private static class Entry {
+
+        private Item item;
+        private long cachedTime;
+
+        private Entry(Item item, long cachedTime) {
+            this.item = item;
+            this.cachedTime = cachedTime;
+        }
+    }
+
+    /**
+     * A load started by a call to {@link #getOrLoad}, with the id and index of its Item and the
+     * position of the Item in the list returned.
+     */
+    private static class OwnLoad {
+
+        private final String id;
+        private final int index;
+        private final int position;
+        private final PendingLoad pendingLoad;
+
+        private OwnLoad(String id, int index, int position, PendingLoad pendingLoad) {
+            this.id = id;
+            this.index = index;
+            this.position = position;
+            this.pendingLoad = pendingLoad;
+        }
+    }
+
+    /**
+     * The load of an Item by one thread, which other threads wanting the Item wait on.
+     */
+    private static class PendingLoad {
+
+        private CountDownLatch completion = new CountDownLatch(1);
+
+        private volatile Item item;
+        private volatile Throwable failure;
+
+        /**
+         * Completes the load with the given Item, unless it has already been completed.
+         */
+        private synchronized void complete(Item item) {
+            if (this.completion.getCount() > 0) {
+                this.item = item;
+                this.completion.countDown();
+            }
+        }
+
+        private synchronized void fail(Throwable failure) {
+            if (this.completion.getCount() > 0) {
+                this.failure = failure;
+                this.completion.countDown();
+            }
+        }
+
+        /**
+         * Waits for the load to complete, returning the Item or rethrowing the failure of the
+         * thread loading it.
+         */
+        private Item await() throws IOException {
+            try {
+                this.completion.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException interruptedIOException = new InterruptedIOException();
+                interruptedIOException.initCause(e);
+                throw interruptedIOException;
+            }
+
+            if (this.failure instanceof IOException) {
+                throw (IOException) this.failure;
+            } else if (this.failure instanceof RuntimeException) {
+                throw (RuntimeException) this.failure;
+            } else if (this.failure instanceof Error) {
+                throw (Error) this.failure;
+            }
+
+            return this.item;
+        }
     }
 
 }
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.util.Arrays;
+
+import au.id.tmm.anewreader.utility.LatencyHistogram;
+
+/**
+ * Snapshot of the statistics of an Account's item cache, counted since the Account's Model was
+ * created. Misses that couldn't be served from the disk cache are retrieved from the api, and the
+ * latencies of these retrievals are given as a histogram.
+ */
+public class ItemCacheStats {
+
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long skippedPutCount;
+    private long evictionCount;
+
+    private int residentItems;
+    private long residentBytes;
+    private long maxBytes;
+
+    private long diskHitCount;
+
+    private long apiRetrievalCount;
+    private long apiRetrievedItemCount;
+    private long[] apiLatencyBucketBoundsMillis;
+    private long[] apiLatencyBucketCounts;
+    private long apiLatencyMedianMillis;
+    private long apiLatency95thPercentileMillis;
+    private long apiLatencyMaxMillis;
+
+    ItemCacheStats(ItemCache itemCache, long diskHitCount, long apiRetrievedItemCount,
+                   LatencyHistogram apiLatencies) {
+        this.hitCount = itemCache.getHitCount();
+        this.missCount = itemCache.getMissCount();
+        this.putCount = itemCache.getPutCount();
+        this.skippedPutCount = itemCache.getSkippedPutCount();
+        this.evictionCount = itemCache.getEvictionCount();
+
+        this.residentItems = itemCache.size();
+        this.residentBytes = itemCache.getTotalWeight();
+        this.maxBytes = itemCache.getMaxWeight();
+
+        this.diskHitCount = diskHitCount;
+
+        this.apiRetrievalCount = apiLatencies.getCount();
+        this.apiRetrievedItemCount = apiRetrievedItemCount;
+        this.apiLatencyBucketBoundsMillis = apiLatencies.getBucketBoundsMillis();
+        this.apiLatencyBucketCounts = apiLatencies.getBucketCounts();
+        this.apiLatencyMedianMillis = apiLatencies.getPercentileMillis(0.5);
+        this.apiLatency95thPercentileMillis = apiLatencies.getPercentileMillis(0.95);
+        this.apiLatencyMaxMillis = apiLatencies.getMaxMillis();
+    }
+
+    /*** Accessors ***/
+
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Returns the number of Items looked up that weren't in memory, including those then found in
+     * the disk cache.
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Returns the proportion of Items looked up that were found in memory, or zero if none have
+     * been looked up.
+     */
+    public double getHitRatio() {
+        long lookupCount = this.hitCount + this.missCount;
+        return lookupCount > 0 ? (double) this.hitCount / lookupCount : 0;
+    }
+
+    public long getPutCount() {
+        return this.putCount;
+    }
+
+    /**
+     * Returns the number of Items received that weren't cached as a copy no older was already
+     * cached.
+     */
+    public long getSkippedPutCount() {
+        return this.skippedPutCount;
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    public int getResidentItems() {
+        return this.residentItems;
+    }
+
+    /**
+     * Returns the estimated memory in bytes used by the cached Items.
+     */
+    public long getResidentBytes() {
+        return this.residentBytes;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public long getDiskHitCount() {
+        return this.diskHitCount;
+    }
+
+    /**
+     * Returns the number of retrievals of missed Items from the api. Each retrieves one or more
+     * Items.
+     */
+    public long getApiRetrievalCount() {
+        return this.apiRetrievalCount;
+    }
+
+    public long getApiRetrievedItemCount() {
+        return this.apiRetrievedItemCount;
+    }
+
+    /**
+     * Returns the upper bounds of the buckets of the api retrieval latency histogram. There is one
+     * fewer of these than of the counts, the last count being of latencies beyond every bound.
+     */
+    public long[] getApiLatencyBucketBoundsMillis() {
+        return this.apiLatencyBucketBoundsMillis.clone();
+    }
+
+    public long[] getApiLatencyBucketCounts() {
+        return this.apiLatencyBucketCounts.clone();
+    }
+
+    public long getApiLatencyMedianMillis() {
+        return this.apiLatencyMedianMillis;
+    }
+
+    public long getApiLatency95thPercentileMillis() {
+        return this.apiLatency95thPercentileMillis;
+    }
+
+    public long getApiLatencyMaxMillis() {
+        return this.apiLatencyMaxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + this.hitCount
+                + " misses=" + this.missCount
+                + " hitRatio=" + String.format("%.3f", this.getHitRatio())
+                + " puts=" + this.putCount
+                + " skippedPuts=" + this.skippedPutCount
+                + " evictions=" + this.evictionCount
+                + " residentItems=" + this.residentItems
+                + " residentBytes=" + this.residentBytes
+                + " maxBytes=" + this.maxBytes
+                + " diskHits=" + this.diskHitCount
+                + " apiRetrievals=" + this.apiRetrievalCount
+                + " apiItems=" + this.apiRetrievedItemCount
+                + " apiLatencyP50Ms=" + this.apiLatencyMedianMillis
+                + " apiLatencyP95Ms=" + this.apiLatency95thPercentileMillis
+                + " apiLatencyMaxMs=" + this.apiLatencyMaxMillis
+                + " apiLatencyBoundsMs=" + Arrays.toString(this.apiLatencyBucketBoundsMillis)
+                + " apiLatencyCounts=" + Arrays.toString(this.apiLatencyBucketCounts);
+    }
+
+}
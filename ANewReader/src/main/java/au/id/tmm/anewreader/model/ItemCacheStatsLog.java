@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+import au.id.tmm.anewreader.utility.IOUtils;
+
+/**
+ * Periodically appends a snapshot of an Account's {@link ItemCacheStats} to a log file, one line
+ * per snapshot, so that the effectiveness of the cache can be followed over a session.
+ */
+class ItemCacheStatsLog {
+
+    private static final String LOG_ENCODING = "UTF-8";
+
+    private Account account;
+    private File logFile;
+    private long intervalMillis;
+
+    private ScheduledExecutorService executor
+            = ConcurrencyUtils.newSingleThreadScheduledExecutor("cache-stats-log");
+
+    private ScheduledFuture<?> scheduledWrites;
+
+    protected ItemCacheStatsLog(Account account, File logFile, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.account = account;
+        this.logFile = logFile;
+        this.intervalMillis = intervalMillis;
+    }
+
+    protected synchronized void start() {
+        if (this.scheduledWrites != null) {
+            return;
+        }
+
+        this.scheduledWrites = this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops writing snapshots, writing a final one first.
+     */
+    protected synchronized void stop() {
+        if (this.scheduledWrites == null) {
+            return;
+        }
+
+        this.scheduledWrites.cancel(false);
+        this.scheduledWrites = null;
+
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        });
+        this.executor.shutdown();
+    }
+
+    private void writeSnapshot() {
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US)
+                .format(new Date());
+
+        try {
+            IOUtils.appendStringToFile(this.logFile, LOG_ENCODING,
+                    timestamp + " " + this.account.getItemCacheStats() + "\n");
+        } catch (IOException e) {
+            // The log is only diagnostic, so we carry on without this snapshot.
+        }
+    }
+
+}
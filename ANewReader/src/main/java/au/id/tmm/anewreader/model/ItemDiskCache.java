@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Second tier of the {@link ItemCache}, holding Items on disk so that they survive being evicted
+ * from memory and outlive the session. Each Item is held as JSON, in the form retrieved from the
+ * api, keyed by its id and versioned by its updated timestamp.
+ * <p/>
+ * Items are appended to a single segment file, with an index of where each Item's latest copy
+ * starts held in memory and rebuilt by scanning the file when it is opened. A record is written as
+ * its length, the version, the length of the id, the id and the JSON. When the file grows beyond
+ * its maximum size, it is rewritten with only the most recently written Items.
+ * <p/>
+ * Methods perform disk operations, so can't be run on the UI thread.
+ */
+class ItemDiskCache {
+
+    private static final String SEGMENT_FILENAME = "items.segment";
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
+    private static final String ENCODING = "UTF-8";
+
+    private static final long DEFAULT_MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+    // The length of a record before its id.
+    private static final int RECORD_HEADER_BYTES = 4 + 8 + 2;
+
+    private File directory;
+    private File segmentFile;
+
+    private long maxSizeBytes;
+
+    // Guarded by this, as are the fields below.
+    private RandomAccessFile segment;
+    private Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+    private boolean failed = false;
+
+    protected ItemDiskCache(File directory, long maxSizeBytes) {
+        this.directory = directory;
+        this.segmentFile = new File(directory, SEGMENT_FILENAME);
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    protected ItemDiskCache(File directory) {
+        this(directory, DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    /*** Accessors and mutators ***/
+
+    /**
+     * Returns the JSON of the Item with the given id, or null if it isn't held. If the disk can't
+     * be read, the cache behaves as if it were empty.
+     */
+    protected synchronized String get(String id) {
+        if (!this.open()) {
+            return null;
+        }
+
+        IndexEntry entry = this.index.get(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            return new String(this.readJsonBytes(this.segment, entry), ENCODING);
+        } catch (IOException e) {
+            this.index.remove(id);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if an Item with the given id is held, without reading it.
+     */
+    protected synchronized boolean contains(String id) {
+        return this.open() && this.index.containsKey(id);
+    }
+
+    /**
+     * Holds the JSON of the given Item, unless a copy of it updated no earlier is already held.
+     * Returns true if the Item was written.
+     */
+    protected synchronized boolean put(String id, long version, String json) throws IOException {
+        if (!this.open()) {
+            return false;
+        }
+
+        IndexEntry existingEntry = this.index.get(id);
+
+        if (existingEntry != null && existingEntry.version >= version) {
+            return false;
+        }
+
+        byte[] jsonBytes = json.getBytes(ENCODING);
+        long recordOffset = this.segment.length();
+
+        this.segment.seek(recordOffset);
+        this.segment.write(encodeRecord(id, version, jsonBytes));
+
+        this.index.put(id, new IndexEntry(recordOffset, id, version, jsonBytes.length));
+
+        if (this.segment.length() > this.maxSizeBytes) {
+            this.compact();
+        }
+
+        return true;
+    }
+
+    protected synchronized int size() {
+        return this.open() ? this.index.size() : 0;
+    }
+
+    /**
+     * Closes the segment file. It is reopened if the cache is used again.
+     */
+    protected synchronized void close() throws IOException {
+        if (this.segment != null) {
+            this.segment.close();
+            this.segment = null;
+        }
+        this.index.clear();
+    }
+
+    /*** Segment file ***/
+
+    /**
+     * Opens the segment file and builds the index if we haven't already, returning false if this
+     * isn't possible.
+     */
+    private boolean open() {
+        if (this.segment != null) {
+            return true;
+        } else if (this.failed) {
+            return false;
+        }
+
+        try {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Couldn't create " + this.directory);
+            }
+
+            this.segment = new RandomAccessFile(this.segmentFile, "rw");
+
+            long validLength = this.buildIndex();
+
+            // Discard any record left incomplete when we last stopped.
+            if (validLength < this.segment.length()) {
+                this.segment.setLength(validLength);
+            }
+
+            return true;
+        } catch (IOException e) {
+            this.failed = true;
+            this.index.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Builds the index by scanning the headers of the records in the segment file, returning the
+     * length of the file up to the end of the last complete record.
+     */
+    private long buildIndex() throws IOException {
+        this.index.clear();
+
+        long fileLength = this.segmentFile.length();
+        long offset = 0;
+
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.segmentFile)));
+
+        try {
+            while (offset + RECORD_HEADER_BYTES <= fileLength) {
+                int recordLength = inputStream.readInt();
+                long version = inputStream.readLong();
+                int idLength = inputStream.readUnsignedShort();
+
+                int jsonLength = recordLength - RECORD_HEADER_BYTES - idLength;
+
+                if (jsonLength < 0 || offset + recordLength > fileLength) {
+                    break;
+                }
+
+                byte[] idBytes = new byte[idLength];
+                inputStream.readFully(idBytes);
+                String id = new String(idBytes, ENCODING);
+
+                skipFully(inputStream, jsonLength);
+
+                // Later records for an Item supersede earlier ones.
+                this.index.put(id, new IndexEntry(offset, id, version, jsonLength));
+
+                offset += recordLength;
+            }
+        } catch (EOFException e) {
+            // The file ends part way through a record.
+        } finally {
+            inputStream.close();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Rewrites the segment file with only the latest copy of each Item, dropping the Items written
+     * least recently until it is no more than half its maximum size.
+     */
+    private void compact() throws IOException {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>(this.index.values());
+
+        // Most recently written first.
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+            @Override
+            public int compare(IndexEntry entry, IndexEntry otherEntry) {
+                return entry.offset > otherEntry.offset ? -1
+                        : (entry.offset < otherEntry.offset ? 1 : 0);
+            }
+        });
+
+        long keptSize = 0;
+        int numKeptEntries = 0;
+
+        while (numKeptEntries < entries.size()
+                && keptSize + entries.get(numKeptEntries).getRecordLength()
+                <= this.maxSizeBytes / 2) {
+            keptSize += entries.get(numKeptEntries).getRecordLength();
+            numKeptEntries++;
+        }
+
+        List<IndexEntry> keptEntries = new ArrayList<IndexEntry>(entries.subList(0, numKeptEntries));
+
+        // Keep the records in the order they were written.
+        Collections.reverse(keptEntries);
+
+        File tempFile = new File(this.directory, SEGMENT_FILENAME + TEMP_FILENAME_SUFFIX);
+        RandomAccessFile newSegment = new RandomAccessFile(tempFile, "rw");
+        Map<String, IndexEntry> newIndex = new HashMap<String, IndexEntry>();
+
+        try {
+            newSegment.setLength(0);
+
+            for (IndexEntry currentEntry : keptEntries) {
+                byte[] jsonBytes = this.readJsonBytes(this.segment, currentEntry);
+                long newOffset = newSegment.length();
+
+                newSegment.seek(newOffset);
+                newSegment.write(encodeRecord(currentEntry.id, currentEntry.version, jsonBytes));
+
+                newIndex.put(currentEntry.id, new IndexEntry(newOffset, currentEntry.id,
+                        currentEntry.version, currentEntry.jsonLength));
+            }
+        } finally {
+            newSegment.close();
+        }
+
+        this.segment.close();
+        this.segment = null;
+
+        if (!tempFile.renameTo(this.segmentFile)) {
+            tempFile.delete();
+            this.failed = true;
+            this.index.clear();
+            throw new IOException("Couldn't replace " + this.segmentFile);
+        }
+
+        this.segment = new RandomAccessFile(this.segmentFile, "rw");
+        this.index = newIndex;
+    }
+
+    private byte[] readJsonBytes(RandomAccessFile file, IndexEntry entry) throws IOException {
+        byte[] jsonBytes = new byte[entry.jsonLength];
+
+        file.seek(entry.getJsonOffset());
+        file.readFully(jsonBytes);
+
+        return jsonBytes;
+    }
+
+    private static byte[] encodeRecord(String id, long version, byte[] jsonBytes)
+            throws IOException {
+        byte[] idBytes = id.getBytes(ENCODING);
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(
+                RECORD_HEADER_BYTES + idBytes.length + jsonBytes.length);
+        DataOutputStream outputStream = new DataOutputStream(recordBytes);
+
+        outputStream.writeInt(RECORD_HEADER_BYTES + idBytes.length + jsonBytes.length);
+        outputStream.writeLong(version);
+        outputStream.writeShort(idBytes.length);
+        outputStream.write(idBytes);
+        outputStream.write(jsonBytes);
+        outputStream.flush();
+
+        return recordBytes.toByteArray();
+    }
+
+    private static void skipFully(DataInputStream inputStream, int numBytes) throws IOException {
+        int remainingBytes = numBytes;
+
+        while (remainingBytes > 0) {
+            int skippedBytes = inputStream.skipBytes(remainingBytes);
+
+            if (skippedBytes <= 0) {
+                throw new EOFException();
+            }
+
+            remainingBytes -= skippedBytes;
+        }
+    }
+
+    /**
+     * The location of the latest record of an Item in the segment file.
+     */
+    private static class IndexEntry {
+
+        private long offset;
+        private String id;
+        private long version;
+        private int jsonLength;
+
+        private IndexEntry(long offset, String id, long version, int jsonLength) {
+            this.offset = offset;
+            this.id = id;
+            this.version = version;
+            this.jsonLength = jsonLength;
+        }
+
+        private int getIdLength() {
+            try {
+                return this.id.getBytes(ENCODING).length;
+            } catch (IOException e) {
+                // This should never occur, so thrown as a RuntimeException
+                throw new RuntimeException(e);
+            }
+        }
+
+        private long getJsonOffset() {
+            return this.offset + RECORD_HEADER_BYTES + this.getIdLength();
+        }
+
+        private int getRecordLength() {
+            return RECORD_HEADER_BYTES + this.getIdLength() + this.jsonLength;
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the ids of the Items of a Model to dense int indexes, so that Items can be looked up in
+ * tables keyed by primitive ints rather than by Strings. The String form of an id is only needed
+ * to talk to the api and the disk cache.
+ * <p/>
+ * An id only keeps its index while it is referenced, either by an Item, until the Item has been
+ * garbage collected, or by a caller that has acquired the index and is yet to release it. Once an
+ * index is no longer referenced, the Listener is told so that it can clear anything held for the
+ * index, and the index is reused. The number of indexes is therefore bounded by the number of
+ * Items in memory, rather than growing with every Item seen.
+ * <p/>
+ * Ids can't simply be parsed to a long, as those of some services, such as The Old Reader, are 24
+ * hexadecimal digits.
+ */
+class ItemIds {
+
+    // Beyond this many Items in memory the read status table would need to grow further.
+    protected static final int MAX_ITEMS = 1 << 24;
+
+    protected static final int NO_INDEX = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Guarded by this, as are the fields below it.
+    private Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    // The id and the number of references to each index in use.
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private int[] referenceCounts = new int[INITIAL_CAPACITY];
+
+    // Indexes that have been released, which are reused before new indexes are allocated.
+    private int[] freeIndexes = new int[INITIAL_CAPACITY];
+    private int numFreeIndexes = 0;
+    private int nextIndex = 0;
+
+    // Indexes no longer referenced, which the Listener is yet to be told of.
+    private int[] releasedIndexes = new int[INITIAL_CAPACITY];
+    private int numReleasedIndexes = 0;
+
+    // The Items holding indexes, as a doubly linked list so that collected Items can be unlinked.
+    private ItemReference firstItemReference;
+    private ReferenceQueue<Item> collectedItems = new ReferenceQueue<Item>();
+
+    private Listener listener;
+
+    protected ItemIds(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the index of the given id, allocating one if it has none, and adds a reference to
+     * it. The reference must be released with {@link #release} or handed to an Item with
+     * {@link #releaseWhenCollected}.
+     */
+    protected int acquire(String id) {
+        int index;
+
+        synchronized (this) {
+            this.releaseCollectedItems();
+            index = this.acquireIndex(id);
+        }
+
+        this.clearReleasedIndexes();
+
+        return index;
+    }
+
+    /**
+     * Acquires the index of each of the given ids, as per {@link #acquire(String)}, returning them
+     * in the same order.
+     */
+    protected int[] acquire(List<String> ids) {
+        int[] indexes = new int[ids.size()];
+
+        synchronized (this) {
+            this.releaseCollectedItems();
+
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = this.acquireIndex(ids.get(i));
+            }
+        }
+
+        this.clearReleasedIndexes();
+
+        return indexes;
+    }
+
+    /**
+     * Releases a reference to each of the given indexes.
+     */
+    protected void release(int[] indexes) {
+        synchronized (this) {
+            for (int currentIndex : indexes) {
+                this.releaseIndex(currentIndex);
+            }
+        }
+
+        this.clearReleasedIndexes();
+    }
+
+    /**
+     * Releases a reference to the given index, acquired with {@link #acquire(String)}.
+     */
+    protected void release(int index) {
+        synchronized (this) {
+            this.releaseIndex(index);
+        }
+
+        this.clearReleasedIndexes();
+    }
+
+    /**
+     * Hands the reference acquired for the index of the given Item to the Item, so that it is
+     * released once the Item has been garbage collected.
+     */
+    protected synchronized void releaseWhenCollected(Item item) {
+        ItemReference itemReference = new ItemReference(item, this.collectedItems);
+
+        itemReference.next = this.firstItemReference;
+        if (this.firstItemReference != null) {
+            this.firstItemReference.previous = itemReference;
+        }
+        this.firstItemReference = itemReference;
+    }
+
+    /**
+     * Returns the index of the given id if it is referenced, or {@link #NO_INDEX} otherwise.
+     */
+    protected synchronized int find(String id) {
+        Integer index = this.indexes.get(id);
+
+        return index != null ? index : NO_INDEX;
+    }
+
+    /**
+     * Returns the Items in memory, being those that haven't yet been garbage collected.
+     */
+    protected synchronized List<Item> getItems() {
+        List<Item> returnedItems = new ArrayList<Item>();
+
+        for (ItemReference current = this.firstItemReference; current != null;
+             current = current.next) {
+            Item currentItem = current.get();
+
+            if (currentItem != null) {
+                returnedItems.add(currentItem);
+            }
+        }
+
+        return returnedItems;
+    }
+
+    /**
+     * Returns the number of indexes in use.
+     */
+    protected int size() {
+        int size;
+
+        synchronized (this) {
+            this.releaseCollectedItems();
+            size = this.indexes.size();
+        }
+
+        this.clearReleasedIndexes();
+
+        return size;
+    }
+
+    private int acquireIndex(String id) {
+        Integer existingIndex = this.indexes.get(id);
+        int index;
+
+        if (existingIndex != null) {
+            index = existingIndex;
+        } else {
+            index = this.allocate();
+            this.ids[index] = id;
+            this.indexes.put(id, index);
+        }
+
+        this.referenceCounts[index]++;
+
+        return index;
+    }
+
+    /**
+     * Removes a reference to the given index. Once it has none, its id no longer maps to it, but
+     * it is only freed for reuse by {@link #clearReleasedIndexes}.
+     */
+    private void releaseIndex(int index) {
+        if (this.referenceCounts[index] <= 0) {
+            throw new IllegalStateException("Index " + index + " isn't referenced");
+        }
+
+        this.referenceCounts[index]--;
+
+        if (this.referenceCounts[index] == 0) {
+            this.indexes.remove(this.ids[index]);
+            this.ids[index] = null;
+
+            if (this.numReleasedIndexes == this.releasedIndexes.length) {
+                this.releasedIndexes
+                        = Arrays.copyOf(this.releasedIndexes, this.releasedIndexes.length * 2);
+            }
+            this.releasedIndexes[this.numReleasedIndexes++] = index;
+        }
+    }
+
+    /**
+     * Tells the Listener of the indexes released since it was last told, then frees them for
+     * reuse. The Listener is told without holding the lock, so that it doesn't block the lookups
+     * of other threads while it clears its tables. The indexes can't be reused until they have
+     * been freed afterwards.
+     */
+    private void clearReleasedIndexes() {
+        int[] clearedIndexes;
+
+        synchronized (this) {
+            if (this.numReleasedIndexes == 0) {
+                return;
+            }
+
+            clearedIndexes = Arrays.copyOf(this.releasedIndexes, this.numReleasedIndexes);
+            this.numReleasedIndexes = 0;
+        }
+
+        for (int currentIndex : clearedIndexes) {
+            this.listener.released(currentIndex);
+        }
+
+        synchronized (this) {
+            for (int currentIndex : clearedIndexes) {
+                if (this.numFreeIndexes == this.freeIndexes.length) {
+                    this.freeIndexes
+                            = Arrays.copyOf(this.freeIndexes, this.freeIndexes.length * 2);
+                }
+                this.freeIndexes[this.numFreeIndexes++] = currentIndex;
+            }
+        }
+    }
+
+    private int allocate() {
+        if (this.numFreeIndexes > 0) {
+            return this.freeIndexes[--this.numFreeIndexes];
+        }
+
+        if (this.nextIndex >= MAX_ITEMS) {
+            throw new IllegalStateException("Too many Items in memory to index");
+        }
+
+        if (this.nextIndex == this.ids.length) {
+            int newCapacity = Math.min(this.ids.length * 2, MAX_ITEMS);
+            this.ids = Arrays.copyOf(this.ids, newCapacity);
+            this.referenceCounts = Arrays.copyOf(this.referenceCounts, newCapacity);
+        }
+
+        return this.nextIndex++;
+    }
+
+    private void releaseCollectedItems() {
+        ItemReference collectedItem;
+
+        while ((collectedItem = (ItemReference) this.collectedItems.poll()) != null) {
+            if (collectedItem.previous != null) {
+                collectedItem.previous.next = collectedItem.next;
+            } else {
+                this.firstItemReference = collectedItem.next;
+            }
+            if (collectedItem.next != null) {
+                collectedItem.next.previous = collectedItem.previous;
+            }
+
+            this.releaseIndex(collectedItem.index);
+        }
+    }
+
+    /**
+     * Told when an index is no longer referenced, before it is reused for another id. It isn't
+     * told while the ItemIds is locked, so may be told some time after the index was released.
+     */
+    protected static interface Listener {
+
+        public void released(int index);
+    }
+
+    /**
+     * A weak reference to an Item, remembering its index so that it can be released once the Item
+     * has been collected.
+     */
+    private static class ItemReference extends WeakReference<Item> {
+
+        private final int index;
+
+        private ItemReference previous;
+        private ItemReference next;
+
+        private ItemReference(Item item, ReferenceQueue<Item> queue) {
+            super(item, queue);
+            this.index = item.getIndex();
+        }
+    }
+
+}
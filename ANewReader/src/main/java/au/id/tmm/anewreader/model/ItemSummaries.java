@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import au.id.tmm.anewreader.utility.IntLinkedHashMap;
+import au.id.tmm.anewreader.utility.SingleFlight;
+
+/**
+ * Holds the summaries of Items apart from the Items themselves. An Item is only a lightweight
+ * header, with its title, links and so on, which is all a list of Items needs, and can be kept in
+ * memory in large numbers. Its summary, the content of the post, may be many times larger, so is
+ * only kept in memory while there is room and is otherwise loaded again when it is displayed.
+ * <p/>
+ * Summaries are kept within a budget of estimated memory, evicting the least recently used when it
+ * is exceeded. Missing summaries are loaded with the given Loader, eg from disk or the api, with
+ * concurrent loads of the same summary shared.
+ * <p/>
+ * To fit more summaries in the budget, they are held as UTF-8 rather than as Strings, which take
+ * two bytes per character. Summaries longer than the compression threshold, which is most articles,
+ * are also deflated, and are inflated again each time they are retrieved.
+ */
+class ItemSummaries {
+
+    private static final long DEFAULT_MAX_WEIGHT_BYTES = 2 * 1024 * 1024;
+
+    // Below this many bytes of UTF-8, deflating a summary saves too little to be worth inflating
+    // it again.
+    private static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 512;
+
+    protected static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+    private static final String ENCODING = "UTF-8";
+
+    // A rough allowance for the encoded summary, its byte array and the map entry.
+    private static final int SUMMARY_OVERHEAD_BYTES = 96;
+
+    // Summaries by the index of their Item, held in access order, so the least recently used
+    // summary is first. Guarded by this, as are the fields below it.
+    private IntLinkedHashMap<EncodedSummary> summaries = new IntLinkedHashMap<EncodedSummary>(true);
+
+    private long maxWeight;
+    private long totalWeight = 0;
+
+    private volatile int compressionThresholdBytes = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    private Loader loader;
+
+    private SingleFlight<String, String> loads = new SingleFlight<String, String>();
+
+    protected ItemSummaries(Loader loader, long maxWeight) {
+        this.loader = loader;
+        this.maxWeight = maxWeight;
+    }
+
+    protected ItemSummaries(Loader loader) {
+        this(loader, DEFAULT_MAX_WEIGHT_BYTES);
+    }
+
+    /*** Accessors and mutators ***/
+
+    /**
+     * Holds the given summary for the Item with the given index, as interned by {@link ItemIds}.
+     */
+    protected void put(int index, String summary) {
+        // Summaries are encoded outside the lock, as deflating one takes a while.
+        EncodedSummary encodedSummary = encode(summary, this.compressionThresholdBytes);
+
+        synchronized (this) {
+            EncodedSummary previousSummary = this.summaries.put(index, encodedSummary);
+
+            if (previousSummary != null) {
+                this.totalWeight -= getWeight(previousSummary);
+            }
+            this.totalWeight += getWeight(encodedSummary);
+
+            this.evictToWeight(this.maxWeight);
+        }
+    }
+
+    /**
+     * Forgets the summary held for the given index, which has been released.
+     */
+    protected synchronized void remove(int index) {
+        EncodedSummary removedSummary = this.summaries.remove(index);
+
+        if (removedSummary != null) {
+            this.totalWeight -= getWeight(removedSummary);
+        }
+    }
+
+    /**
+     * Returns the summary of the Item with the given index if it is in memory, or null otherwise.
+     */
+    protected String getIfLoaded(int index) {
+        EncodedSummary encodedSummary;
+
+        synchronized (this) {
+            encodedSummary = this.summaries.get(index);
+        }
+
+        return encodedSummary != null ? decode(encodedSummary) : null;
+    }
+
+    /**
+     * Returns the summary of the given Item, loading it if it isn't in memory.
+     */
+    protected String get(final Item item) throws IOException {
+        String summary = this.getIfLoaded(item.getIndex());
+
+        if (summary != null) {
+            return summary;
+        }
+
+        return this.loads.execute(item.getId(), new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                // The loader holds the summary it loads, so it is only encoded once.
+                return loader.load(item);
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by summaries, evicting summaries if now
+     * over budget.
+     */
+    protected synchronized void setMaxWeight(long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.maxWeight = maxWeight;
+        this.evictToWeight(maxWeight);
+    }
+
+    protected synchronized long getTotalWeight() {
+        return this.totalWeight;
+    }
+
+    /**
+     * Sets the number of bytes of UTF-8 above which summaries put from now on are deflated, or
+     * {@link #NO_COMPRESSION} if none should be.
+     */
+    protected void setCompressionThreshold(int compressionThresholdBytes) {
+        if (compressionThresholdBytes < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    private void evictToWeight(long weight) {
+        Iterator<EncodedSummary> iterator = this.summaries.iterator();
+
+        while (this.totalWeight > weight && iterator.hasNext()) {
+            this.totalWeight -= getWeight(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static long getWeight(EncodedSummary summary) {
+        return SUMMARY_OVERHEAD_BYTES + summary.bytes.length;
+    }
+
+    /*** Encoding ***/
+
+    private static EncodedSummary encode(String summary, int compressionThresholdBytes) {
+        byte[] utf8Bytes = getUtf8Bytes(summary);
+
+        if (utf8Bytes.length <= compressionThresholdBytes) {
+            return new EncodedSummary(utf8Bytes, false, utf8Bytes.length);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setInput(utf8Bytes);
+            deflater.finish();
+
+            ByteArrayOutputStream deflatedBytes = new ByteArrayOutputStream(utf8Bytes.length / 2);
+            byte[] buffer = new byte[4096];
+
+            while (!deflater.finished()) {
+                int numBytes = deflater.deflate(buffer);
+                deflatedBytes.write(buffer, 0, numBytes);
+            }
+
+            // Incompressible summaries are kept as they are.
+            if (deflatedBytes.size() >= utf8Bytes.length) {
+                return new EncodedSummary(utf8Bytes, false, utf8Bytes.length);
+            }
+
+            return new EncodedSummary(deflatedBytes.toByteArray(), true, utf8Bytes.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String decode(EncodedSummary summary) {
+        if (!summary.compressed) {
+            return getString(summary.bytes);
+        }
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(summary.bytes);
+
+            byte[] utf8Bytes = new byte[summary.utf8Length];
+            int offset = 0;
+
+            while (offset < utf8Bytes.length && !inflater.finished()) {
+                offset += inflater.inflate(utf8Bytes, offset, utf8Bytes.length - offset);
+            }
+
+            return getString(utf8Bytes);
+        } catch (DataFormatException e) {
+            // We deflated these bytes ourselves, so this should never occur.
+            throw new RuntimeException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] getUtf8Bytes(String string) {
+        try {
+            return string.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // This should never occur, so thrown as a RuntimeException
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String getString(byte[] utf8Bytes) {
+        try {
+            return new String(utf8Bytes, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // This should never occur, so thrown as a RuntimeException
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A summary as UTF-8, deflated if compressed is true.
+     */
+    private static class EncodedSummary {
+
+        private final byte[] bytes;
+        private final boolean compressed;
+        private final int utf8Length;
+
+        private EncodedSummary(byte[] bytes, boolean compressed, int utf8Length) {
+            this.bytes = bytes;
+            this.compressed = compressed;
+            this.utf8Length = utf8Length;
+        }
+    }
+
+    /**
+     * Loads summaries missing from memory.
+     */
+    protected static interface Loader {
+
+        /**
+         * Returns the summary of the given Item, or an empty string if it can't be found. A found
+         * summary should also be {@link ItemSummaries#put}, as it isn't put again.
+         */
+        public String load(Item item) throws IOException;
+    }
+
+}
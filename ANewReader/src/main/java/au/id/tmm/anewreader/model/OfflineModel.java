@@ -0,0 +1,1296 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+import au.id.tmm.anewreader.utility.IOUtils;
+
+/**
+ * Model serving Items and Feeds from a store on disk, so that they can be displayed straight away
+ * and without a connection. The api is used to keep the store up to date.
+ * <p/>
+ * The subscriptions, categories and unread counts are served from the store whenever we have
+ * them, and are synchronised with the api in the background. For each Feed, the store holds a
+ * contiguous run of its most recent Items, which are served newest first. Items newer than those
+ * stored (ie a refresh) or older than the oldest stored are retrieved from the api, and added to
+ * the store where they are contiguous with the Items already stored.
+ * <p/>
+ * The store is written in the background as it changes. The stored Items of each Feed are held in
+ * a file of their own, in the form retrieved from the api but without their summaries, which are
+ * left to the disk cache. The stored Items of a Feed are only read once they are needed, and only
+ * those of the most recently used Feeds are held in memory, as JSON rather than as Items. Changes
+ * in read status are appended to a log shared by every Feed rather than rewriting its file, and
+ * the log is applied to the files once it grows long enough.
+ */
+class OfflineModel extends OnlineModel {
+
+    private static final String STORE_ENCODING = "UTF-8";
+
+    private static final String SUBSCRIPTIONS_FILENAME = "subscriptions.json";
+    private static final String CATEGORIES_FILENAME = "categories.json";
+    private static final String UNREAD_COUNTS_FILENAME = "unread-counts.json";
+    private static final String READ_STATUS_LOG_FILENAME = "read-statuses.log";
+    private static final String ITEMS_DIRECTORY_NAME = "items";
+    private static final String ITEMS_FILENAME_SUFFIX = ".json";
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
+
+    // Appended to the feed address to identify the store of only the unread Items of a Feed.
+    private static final String UNREAD_STORE_KEY_SUFFIX = "#unread";
+
+    // Each line of the read status log is one of these prefixes followed by an item id.
+    private static final String LOGGED_READ_PREFIX = "R ";
+    private static final String LOGGED_UNREAD_PREFIX = "U ";
+    private static final String LOG_LINE_SEPARATOR = "\n";
+
+    private static final int MAX_STORED_ITEMS_PER_FEED = 500;
+
+    // The stored Items of any more Feeds than this are read from their files again when needed.
+    private static final int MAX_LOADED_STORES = 8;
+
+    // Once the log has more read status changes than this, they are applied to the items files.
+    private static final int MAX_LOGGED_READ_STATUSES = 1000;
+
+    private static final int MAX_CONTIGUOUS_CONTINUATIONS = 32;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    // Items are stored and served in the order they are displayed, ie most recently crawled first.
+    private static final Comparator<Item> NEWEST_FIRST = new Comparator<Item>() {
+        @Override
+        public int compare(Item item, Item otherItem) {
+            int timestampComparison
+                    = otherItem.getCrawlTimestamp().compareTo(item.getCrawlTimestamp());
+            return timestampComparison != 0
+                    ? timestampComparison
+                    : item.getId().compareTo(otherItem.getId());
+        }
+    };
+
+    private static final Comparator<StoredItem> STORED_NEWEST_FIRST
+            = new Comparator<StoredItem>() {
+        @Override
+        public int compare(StoredItem item, StoredItem otherItem) {
+            if (item.crawlTimestamp != otherItem.crawlTimestamp) {
+                return item.crawlTimestamp > otherItem.crawlTimestamp ? -1 : 1;
+            }
+            return item.id.compareTo(otherItem.id);
+        }
+    };
+
+    private File storeDirectory;
+    private File itemsDirectory;
+
+    private final Object restoreLock = new Object();
+    private volatile boolean restored = false;
+
+    private volatile boolean haveUnreadCounts = false;
+
+    // Held while the items files or the read status log are read or written, so that the position
+    // in the log recorded in each items file stays consistent with the log. Taken before
+    // storeLock.
+    private final Object fileLock = new Object();
+
+    // The stored Items of the most recently used Feeds, keyed by store key, least recently used
+    // first. Guarded by storeLock, as are the fields below it.
+    private final Object storeLock = new Object();
+    private Map<String, ItemStore> loadedStores
+            = new LinkedHashMap<String, ItemStore>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ItemStore> eldest) {
+            return this.size() > MAX_LOADED_STORES;
+        }
+    };
+
+    // Stores modified since they were last written, which are held until they are written even if
+    // they are no longer loaded.
+    private Map<String, ItemStore> modifiedStores = new HashMap<String, ItemStore>();
+
+    // The lines of the read status log, of which the first numLoggedReadStatusesWritten have been
+    // written. Each items file records how many of these had been applied to it.
+    private List<String> readStatusLog = new ArrayList<String>();
+    private int numLoggedReadStatusesWritten = 0;
+
+    private boolean writeScheduled = false;
+
+    // Continuations of pages retrieved from the api that follow on from the oldest stored Items of
+    // a Feed, mapped to the store key of that Feed. The pages they lead to can be stored too. Only
+    // the most recent are kept, as most are never followed.
+    private Map<Continuation, String> contiguousContinuations
+            = new LinkedHashMap<Continuation, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Continuation, String> eldest) {
+            return this.size() > MAX_CONTIGUOUS_CONTINUATIONS;
+        }
+    };
+
+    // Writes to the store are made one at a time, in the order they are submitted.
+    private ExecutorService storeExecutor
+            = ConcurrencyUtils.newBoundedThreadPool(1, "offline-store");
+
+    public OfflineModel(Account parentAccount, File storeDirectory) {
+        super(parentAccount);
+        this.storeDirectory = storeDirectory;
+        this.itemsDirectory = new File(storeDirectory, ITEMS_DIRECTORY_NAME);
+    }
+
+    /*** Feeds ***/
+
+    /**
+     * Returns the stored subscriptions, synchronising them with the api in the background. If
+     * there are none, they are retrieved from the api.
+     */
+    @Override
+    public SortedSet<Subscription> getSubscriptions() throws IOException {
+        this.restore();
+
+        SortedSet<Subscription> knownSubscriptions = this.getKnownSubscriptions();
+
+        if (knownSubscriptions.isEmpty()) {
+            return super.getSubscriptions();
+        }
+
+        this.submitAsync(new Callable<SortedSet<Subscription>>() {
+            @Override
+            public SortedSet<Subscription> call() throws IOException {
+                return OfflineModel.super.getSubscriptions();
+            }
+        });
+
+        return knownSubscriptions;
+    }
+
+    /**
+     * Returns the stored categories, synchronising them with the api in the background. If there
+     * are none, they are retrieved from the api.
+     */
+    @Override
+    public SortedSet<Category> getCategories() throws IOException {
+        this.restore();
+
+        SortedSet<Category> knownCategories = this.getKnownCategories();
+
+        if (knownCategories.isEmpty()) {
+            return super.getCategories();
+        }
+
+        this.submitAsync(new Callable<SortedSet<Category>>() {
+            @Override
+            public SortedSet<Category> call() throws IOException {
+                return OfflineModel.super.getCategories();
+            }
+        });
+
+        return knownCategories;
+    }
+
+    /**
+     * Sets the unread counts from the store, refreshing them from the api in the background. If
+     * there are none stored, they are retrieved from the api.
+     */
+    @Override
+    public void refreshUnreadCounts() throws IOException {
+        this.restore();
+
+        if (!this.haveUnreadCounts) {
+            super.refreshUnreadCounts();
+            return;
+        }
+
+        this.submitAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                OfflineModel.super.refreshUnreadCounts();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    protected JSONArray requestSubscriptionsJson() throws IOException, JSONException {
+        JSONArray subscriptionsJson = super.requestSubscriptionsJson();
+        this.writeInBackground(new File(this.storeDirectory, SUBSCRIPTIONS_FILENAME),
+                subscriptionsJson);
+        return subscriptionsJson;
+    }
+
+    @Override
+    protected JSONArray requestCategoriesJson() throws IOException, JSONException {
+        JSONArray categoriesJson = super.requestCategoriesJson();
+        this.writeInBackground(new File(this.storeDirectory, CATEGORIES_FILENAME),
+                categoriesJson);
+        return categoriesJson;
+    }
+
+    @Override
+    protected JSONArray requestUnreadCountsJson() throws IOException, JSONException {
+        JSONArray unreadCountsJson = super.requestUnreadCountsJson();
+        this.writeInBackground(new File(this.storeDirectory, UNREAD_COUNTS_FILENAME),
+                unreadCountsJson);
+        return unreadCountsJson;
+    }
+
+    @Override
+    protected void applyUnreadCountsJson(JSONArray countsArray) throws JSONException {
+        super.applyUnreadCountsJson(countsArray);
+        this.haveUnreadCounts = true;
+    }
+
+    /*** Items ***/
+
+    /**
+     * Retrieve items as per {@link Model#getItems(Feed, ReadStatus, int, Date, Date,
+     * Continuation)}, from the store where possible. Items newer than newerThan, and Items older
+     * than those stored, are retrieved from the api.
+     */
+    @Override
+    public ListWithContinuation<Item> getItems(Feed feed, ReadStatus readStatus,
+                                               int numItemsLimit, Date olderThan, Date newerThan,
+                                               Continuation continuation) throws IOException {
+
+        if (readStatus == ReadStatus.READ) {
+            // Not supported, see OnlineModel.
+            return super.getItems(feed, readStatus, numItemsLimit, olderThan, newerThan,
+                    continuation);
+        }
+
+        this.restore();
+
+        String storeKey = this.getStoreKey(feed, readStatus);
+
+        if (newerThan != null) {
+
+            // A refresh. Unless there are more new items than we retrieved, they follow on from
+            // the stored items. Otherwise they replace them, as the stored items would leave a gap.
+            ListWithContinuation<Item> newItems = super.getItems(feed, readStatus, numItemsLimit,
+                    olderThan, newerThan, continuation);
+
+            if (continuation == null && olderThan == null) {
+                this.storeItems(storeKey, newItems, newItems.getContinuation() != null);
+            }
+
+            return newItems;
+
+        } else if (continuation != null && !(continuation instanceof StoreContinuation)) {
+
+            // A continuation from a page retrieved from the api.
+            String contiguousStoreKey;
+            synchronized (this.storeLock) {
+                contiguousStoreKey = this.contiguousContinuations.remove(continuation);
+            }
+
+            ListWithContinuation<Item> olderItems = super.getItems(feed, readStatus,
+                    numItemsLimit, olderThan, null, continuation);
+
+            if (storeKey.equals(contiguousStoreKey)) {
+                this.storeItems(storeKey, olderItems, false);
+            }
+
+            return olderItems;
+        }
+
+        Item lastItem = continuation != null
+                ? ((StoreContinuation) continuation).getLastItem()
+                : null;
+
+        List<Item> storedPage = this.getStoredItems(storeKey, readStatus, numItemsLimit,
+                olderThan, lastItem);
+
+        if (!storedPage.isEmpty()) {
+            return new ListWithContinuation<Item>(storedPage,
+                    new StoreContinuation(storedPage.get(storedPage.size() - 1), feed));
+        }
+
+        if (lastItem == null) {
+
+            // Nothing is stored for this Feed. If it is the first page of the Feed, it becomes
+            // the stored items.
+            ListWithContinuation<Item> items = super.getItems(feed, readStatus, numItemsLimit,
+                    olderThan, null, null);
+
+            if (olderThan == null) {
+                this.storeItems(storeKey, items, true);
+            }
+
+            return items;
+
+        } else {
+
+            // We have served every stored item, so the rest are retrieved from the api. The api
+            // only takes times in seconds, so we round up and discard any we have already served.
+            Date lastItemCeiling = new Date(
+                    (lastItem.getCrawlTimestamp().getTime() / MILLIS_PER_SECOND + 1)
+                            * MILLIS_PER_SECOND);
+
+            ListWithContinuation<Item> olderItems = super.getItems(feed, readStatus,
+                    numItemsLimit, lastItemCeiling, null, null);
+
+            List<Item> unservedItems = new ArrayList<Item>(olderItems.getList().size());
+            for (Item currentItem : olderItems.getList()) {
+                if (NEWEST_FIRST.compare(currentItem, lastItem) > 0) {
+                    unservedItems.add(currentItem);
+                }
+            }
+
+            olderItems = new ListWithContinuation<Item>(unservedItems,
+                    olderItems.getContinuation());
+
+            if (this.isOldestStoredItem(storeKey, lastItem)) {
+                this.storeItems(storeKey, olderItems, false);
+            }
+
+            return olderItems;
+        }
+    }
+
+    /**
+     * Changes the read status of the given Item as per {@link OnlineModel#changeReadStatus}. The
+     * change is appended to the read status log rather than rewriting the stores holding the Item.
+     */
+    @Override
+    public void changeReadStatus(Item item, ReadStatus readStatus) {
+        this.restore();
+
+        super.changeReadStatus(item, readStatus);
+
+        synchronized (this.storeLock) {
+            for (ItemStore currentStore : this.getStoresInMemory().values()) {
+                StoredItem storedItem = currentStore.itemsById.get(item.getId());
+
+                if (storedItem != null) {
+                    storedItem.readStatus = readStatus;
+                }
+            }
+
+            this.readStatusLog.add((readStatus == ReadStatus.READ
+                    ? LOGGED_READ_PREFIX
+                    : LOGGED_UNREAD_PREFIX) + item.getId());
+            this.scheduleWrite();
+        }
+    }
+
+    @Override
+    public void markAllAsRead(final Feed feed, Date olderThan) throws IOException {
+        this.restore();
+
+        try {
+            super.markAllAsRead(feed, olderThan);
+        } finally {
+            // The Items in memory were marked as read whether or not the request succeeded, so
+            // the stored Items are too. Those of stores that aren't in memory are marked in their
+            // files in the background.
+            final long timestamp = (olderThan != null ? olderThan : new Date()).getTime();
+
+            synchronized (this.storeLock) {
+                this.markAllAsReadInMemory(feed, timestamp);
+            }
+
+            this.storeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    markAllAsReadInFiles(feed, timestamp);
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the Items of the given Feed crawled no later than the given time as read in each store
+     * in memory. Must be called holding storeLock.
+     */
+    private void markAllAsReadInMemory(Feed feed, long timestamp) {
+        for (Map.Entry<String, ItemStore> currentStore : this.getStoresInMemory().entrySet()) {
+            boolean changed = false;
+
+            for (StoredItem currentItem : currentStore.getValue().items) {
+                if (currentItem.readStatus != ReadStatus.READ
+                        && currentItem.crawlTimestamp <= timestamp
+                        && this.isInFeed(currentItem.subscriptionId, feed)) {
+                    currentItem.readStatus = ReadStatus.READ;
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                this.modifiedStores.put(currentStore.getKey(), currentStore.getValue());
+            }
+        }
+
+        this.scheduleWrite();
+    }
+
+    /**
+     * Marks the Items of the given Feed crawled no later than the given time as read in every
+     * store, including those only in their files. Run on the store executor.
+     */
+    private void markAllAsReadInFiles(Feed feed, long timestamp) {
+        synchronized (this.fileLock) {
+            Set<String> storeKeysInMemory;
+
+            // A store may have been read from its file since the Items in memory were marked.
+            synchronized (this.storeLock) {
+                this.markAllAsReadInMemory(feed, timestamp);
+                storeKeysInMemory = this.getStoresInMemory().keySet();
+            }
+
+            this.writeUnwrittenReadStatuses();
+
+            for (String currentStoreKey : this.getStoreKeysOnDisk()) {
+                if (!storeKeysInMemory.contains(currentStoreKey)) {
+                    this.updateItemsFile(currentStoreKey, feed, timestamp, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if Items of the subscription with the given stream id belong to the given Feed.
+     */
+    private boolean isInFeed(String subscriptionId, Feed feed) {
+        Feed subscription = this.getKnownFeed(subscriptionId);
+
+        if (subscription instanceof Subscription) {
+            return feed.containsSubscription((Subscription) subscription);
+        }
+
+        // Items of subscriptions we don't know have placeholder Subscriptions, which have no
+        // categories.
+        return feed == this.getReadingList() || feed.getFeedAddress().equals(subscriptionId);
+    }
+
+    /**
+     * Returns up to numItemsLimit stored Items of the Feed with the given store key, beginning
+     * after lastItem if it isn't null, and skipping any crawled after olderThan or whose read
+     * status doesn't match readStatus. Stored Items that aren't cached are decoded again.
+     */
+    private List<Item> getStoredItems(String storeKey, ReadStatus readStatus, int numItemsLimit,
+                                      Date olderThan, Item lastItem) throws IOException {
+        List<Item> returnedItems = new ArrayList<Item>(numItemsLimit);
+
+        // The stored Items to be decoded, their read statuses, and their positions in
+        // returnedItems.
+        List<StoredItem> itemsToDecode = new ArrayList<StoredItem>();
+        List<ReadStatus> readStatusesToDecode = new ArrayList<ReadStatus>();
+        List<Integer> decodedPositions = new ArrayList<Integer>();
+
+        ItemStore loadedStore = this.getStore(storeKey);
+
+        synchronized (this.storeLock) {
+            ItemStore store = this.getLoadedStore(storeKey, loadedStore);
+
+            for (StoredItem currentItem : lastItem != null
+                    ? store.items.tailSet(new StoredItem(lastItem))
+                    : store.items) {
+
+                if (returnedItems.size() == numItemsLimit) {
+                    break;
+                }
+
+                if ((lastItem != null && currentItem.id.equals(lastItem.getId()))
+                        || (olderThan != null
+                        && currentItem.crawlTimestamp > olderThan.getTime())) {
+                    continue;
+                }
+
+                Item cachedItem = this.getCachedItem(currentItem.id);
+                ReadStatus currentReadStatus = cachedItem != null
+                        ? cachedItem.getReadStatus()
+                        : currentItem.readStatus;
+
+                if (readStatus != null && currentReadStatus != readStatus) {
+                    continue;
+                }
+
+                if (cachedItem == null) {
+                    itemsToDecode.add(currentItem);
+                    readStatusesToDecode.add(currentReadStatus);
+                    decodedPositions.add(returnedItems.size());
+                }
+
+                returnedItems.add(cachedItem);
+            }
+        }
+
+        if (itemsToDecode.isEmpty()) {
+            return returnedItems;
+        }
+
+        try {
+            JSONArray itemsJson = new JSONArray();
+
+            for (int i = 0; i < itemsToDecode.size(); i++) {
+                JSONObject itemJsonObject = new JSONObject(itemsToDecode.get(i).itemJson);
+                this.putReadStatus(itemJsonObject, readStatusesToDecode.get(i));
+                itemsJson.put(itemJsonObject);
+            }
+
+            List<Item> decodedItems = this.getItemsFromStoredJson(itemsJson);
+
+            for (int i = 0; i < decodedItems.size(); i++) {
+                returnedItems.set(decodedPositions.get(i), decodedItems.get(i));
+            }
+
+            return returnedItems;
+        } catch (JSONException e) {
+            this.discardStore(storeKey);
+        } catch (ApiParseException e) {
+            this.discardStore(storeKey);
+        }
+
+        // The stored Items couldn't be read, so are left to be retrieved from the api.
+        return new ArrayList<Item>();
+    }
+
+    private boolean isOldestStoredItem(String storeKey, Item item) {
+        ItemStore loadedStore = this.getStore(storeKey);
+
+        synchronized (this.storeLock) {
+            ItemStore store = this.getLoadedStore(storeKey, loadedStore);
+
+            return !store.items.isEmpty() && store.items.last().id.equals(item.getId());
+        }
+    }
+
+    /**
+     * Adds the given Items to the store of the Feed with the given store key, first discarding the
+     * Items already stored if replace is true. If the Items have a continuation, the page it leads
+     * to follows on from them and can be stored too.
+     */
+    private void storeItems(String storeKey, ListWithContinuation<Item> items, boolean replace) {
+        List<StoredItem> newItems = new ArrayList<StoredItem>(items.getList().size());
+
+        try {
+            for (Item currentItem : items.getList()) {
+                newItems.add(new StoredItem(currentItem,
+                        this.getJsonFromItem(currentItem).toString()));
+            }
+        } catch (JSONException e) {
+            // The store is only a copy, so we do without.
+            return;
+        }
+
+        // The stored Items are only needed if the new ones are added to them.
+        ItemStore loadedStore = replace ? new ItemStore() : this.getStore(storeKey);
+
+        synchronized (this.storeLock) {
+            ItemStore store = this.getLoadedStore(storeKey, loadedStore);
+
+            if (replace) {
+                store.clear();
+
+                // Continuations leading on from the discarded Items no longer do.
+                this.contiguousContinuations.values().removeAll(
+                        Collections.singleton(storeKey));
+            }
+
+            for (StoredItem currentItem : newItems) {
+                // Replace any stored copy, as the read status of the new one is more recent.
+                store.put(currentItem);
+            }
+
+            // The oldest items are discarded, so that the stored items remain contiguous.
+            while (store.items.size() > MAX_STORED_ITEMS_PER_FEED) {
+                store.remove(store.items.last());
+            }
+
+            this.loadedStores.put(storeKey, store);
+            this.modifiedStores.put(storeKey, store);
+            this.scheduleWrite();
+
+            if (items.getContinuation() != null) {
+                this.contiguousContinuations.put(items.getContinuation(), storeKey);
+            }
+        }
+    }
+
+    /**
+     * Discards the stored Items of the Feed with the given store key.
+     */
+    private void discardStore(String storeKey) {
+        synchronized (this.storeLock) {
+            ItemStore store = new ItemStore();
+            this.loadedStores.put(storeKey, store);
+            this.modifiedStores.put(storeKey, store);
+            this.scheduleWrite();
+        }
+    }
+
+    /**
+     * Returns the key identifying the stored Items of the given Feed. Feeds of only unread Items
+     * are stored separately, as they don't include the read Items.
+     */
+    private String getStoreKey(Feed feed, ReadStatus readStatus) {
+        return feed.getFeedAddress()
+                + (readStatus == ReadStatus.UNREAD ? UNREAD_STORE_KEY_SUFFIX : "");
+    }
+
+    /**
+     * Returns the store with the given key if it is in memory, or null otherwise. Must be called
+     * holding storeLock.
+     */
+    private ItemStore getStoreInMemory(String storeKey) {
+        ItemStore store = this.loadedStores.get(storeKey);
+
+        if (store == null) {
+            store = this.modifiedStores.get(storeKey);
+
+            if (store != null) {
+                this.loadedStores.put(storeKey, store);
+            }
+        }
+
+        return store;
+    }
+
+    /**
+     * Returns the store with the given key if it is in memory, or otherwise the given store, which
+     * was loaded from its file but has since been dropped from memory, holding it in memory again.
+     * Must be called holding storeLock.
+     */
+    private ItemStore getLoadedStore(String storeKey, ItemStore loadedStore) {
+        ItemStore store = this.getStoreInMemory(storeKey);
+
+        if (store == null) {
+            store = loadedStore;
+            this.loadedStores.put(storeKey, store);
+        }
+
+        return store;
+    }
+
+    /**
+     * Returns every store in memory, by store key. Must be called holding storeLock.
+     */
+    private Map<String, ItemStore> getStoresInMemory() {
+        Map<String, ItemStore> stores = new HashMap<String, ItemStore>(this.modifiedStores);
+        stores.putAll(this.loadedStores);
+        return stores;
+    }
+
+    /*** Reading and writing the store ***/
+
+    /**
+     * Restores the Feeds and the read status log from the store, if this hasn't been done
+     * already. Anything that can't be read is left to be retrieved from the api. The stored Items
+     * of each Feed are only read once they are needed.
+     */
+    private void restore() {
+        if (this.restored) {
+            return;
+        }
+
+        synchronized (this.restoreLock) {
+            if (this.restored) {
+                return;
+            }
+
+            // The subscriptions and categories are restored first, as the Items refer to them.
+            try {
+                JSONArray subscriptionsJson = readJsonArray(
+                        new File(this.storeDirectory, SUBSCRIPTIONS_FILENAME));
+                if (subscriptionsJson != null) {
+                    this.applySubscriptionsJson(subscriptionsJson);
+                }
+
+                JSONArray categoriesJson = readJsonArray(
+                        new File(this.storeDirectory, CATEGORIES_FILENAME));
+                if (categoriesJson != null) {
+                    this.applyCategoriesJson(categoriesJson);
+                }
+
+                JSONArray unreadCountsJson = readJsonArray(
+                        new File(this.storeDirectory, UNREAD_COUNTS_FILENAME));
+                if (unreadCountsJson != null) {
+                    this.applyUnreadCountsJson(unreadCountsJson);
+                }
+            } catch (IOException e) {
+                // Left to be retrieved from the api.
+            } catch (JSONException e) {
+                // Left to be retrieved from the api.
+            } catch (ApiParseException e) {
+                // Left to be retrieved from the api.
+            }
+
+            synchronized (this.fileLock) {
+                File logFile = new File(this.storeDirectory, READ_STATUS_LOG_FILENAME);
+
+                try {
+                    String log = logFile.exists()
+                            ? IOUtils.readFileAsString(logFile, STORE_ENCODING)
+                            : "";
+
+                    // A line only partly written is ended, so that the lines written after it
+                    // are counted correctly. It is still counted itself, but matches no item.
+                    if (log.length() > 0 && !log.endsWith(LOG_LINE_SEPARATOR)) {
+                        IOUtils.appendStringToFile(logFile, STORE_ENCODING, LOG_LINE_SEPARATOR);
+                    }
+
+                    synchronized (this.storeLock) {
+                        if (log.length() > 0) {
+                            this.readStatusLog.addAll(
+                                    Arrays.asList(log.split(LOG_LINE_SEPARATOR)));
+                        }
+                        this.numLoggedReadStatusesWritten = this.readStatusLog.size();
+                    }
+                } catch (IOException e) {
+                    // The changes since the items files were written are lost.
+                }
+            }
+
+            this.restored = true;
+        }
+    }
+
+    /**
+     * Returns the store with the given key, reading it from its file and applying the read status
+     * log to it if it isn't in memory. An empty store is returned if the file is missing or can't
+     * be read. Must not be called holding storeLock.
+     */
+    private ItemStore getStore(String storeKey) {
+        synchronized (this.storeLock) {
+            ItemStore store = this.getStoreInMemory(storeKey);
+
+            if (store != null) {
+                return store;
+            }
+        }
+
+        synchronized (this.fileLock) {
+            JSONObject storeJson = null;
+
+            try {
+                storeJson = readJsonObject(this.getItemsFile(storeKey));
+            } catch (IOException e) {
+                // Left to be retrieved from the api.
+            } catch (JSONException e) {
+                // Left to be retrieved from the api.
+            }
+
+            synchronized (this.storeLock) {
+                ItemStore store = this.getStoreInMemory(storeKey);
+
+                if (store == null) {
+                    store = new ItemStore();
+
+                    if (storeJson != null) {
+                        try {
+                            this.readStore(store, storeJson);
+                        } catch (JSONException e) {
+                            store = new ItemStore();
+                        }
+                    }
+
+                    this.loadedStores.put(storeKey, store);
+                }
+
+                return store;
+            }
+        }
+    }
+
+    /**
+     * Reads the stored Items in the given JSON object, as written by {@link #toStoreJson}, into
+     * the given store, and applies the changes in the read status log since it was written. Must
+     * be called holding storeLock.
+     */
+    private void readStore(ItemStore store, JSONObject storeJson) throws JSONException {
+        JSONArray itemsArray = storeJson.getJSONArray("items");
+
+        for (int i = 0; i < itemsArray.length(); i++) {
+            JSONObject currentJsonObject = itemsArray.getJSONObject(i);
+            JSONObject itemJsonObject = currentJsonObject.getJSONObject("item");
+
+            store.put(new StoredItem(currentJsonObject.getString("id"),
+                    itemJsonObject.getLong("crawlTimeMsec"),
+                    itemJsonObject.getJSONObject("origin").getString("streamId"),
+                    itemJsonObject.toString(),
+                    currentJsonObject.getBoolean("read") ? ReadStatus.READ : ReadStatus.UNREAD));
+        }
+
+        Map<String, ReadStatus> loggedReadStatuses
+                = this.getLoggedReadStatuses(storeJson.getInt("logPosition"));
+
+        for (Map.Entry<String, ReadStatus> currentEntry : loggedReadStatuses.entrySet()) {
+            StoredItem storedItem = store.itemsById.get(currentEntry.getKey());
+
+            if (storedItem != null) {
+                storedItem.readStatus = currentEntry.getValue();
+            }
+        }
+    }
+
+    /**
+     * Returns the latest read status of each item id in the read status log from the given
+     * position onwards. Must be called holding storeLock.
+     */
+    private Map<String, ReadStatus> getLoggedReadStatuses(int fromPosition) {
+        Map<String, ReadStatus> readStatuses = new HashMap<String, ReadStatus>();
+
+        for (int i = fromPosition; i < this.readStatusLog.size(); i++) {
+            String currentLine = this.readStatusLog.get(i);
+
+            if (currentLine.startsWith(LOGGED_READ_PREFIX)) {
+                readStatuses.put(currentLine.substring(LOGGED_READ_PREFIX.length()),
+                        ReadStatus.READ);
+            } else if (currentLine.startsWith(LOGGED_UNREAD_PREFIX)) {
+                readStatuses.put(currentLine.substring(LOGGED_UNREAD_PREFIX.length()),
+                        ReadStatus.UNREAD);
+            }
+        }
+
+        return readStatuses;
+    }
+
+    /**
+     * Returns the contents of the items file of the given store, recording that the read status
+     * log up to the given position has been applied to it. Must be called holding storeLock.
+     */
+    private static String toStoreJson(ItemStore store, int logPosition) {
+        StringBuilder storeJson = new StringBuilder("{\"logPosition\":").append(logPosition)
+                .append(",\"items\":[");
+
+        boolean firstItem = true;
+
+        for (StoredItem currentItem : store.items) {
+            if (!firstItem) {
+                storeJson.append(',');
+            }
+            firstItem = false;
+
+            // The Item's JSON is held already encoded, so is copied as it is.
+            storeJson.append("{\"id\":").append(JSONObject.quote(currentItem.id))
+                    .append(",\"read\":").append(currentItem.readStatus == ReadStatus.READ)
+                    .append(",\"item\":").append(currentItem.itemJson)
+                    .append('}');
+        }
+
+        return storeJson.append("]}").toString();
+    }
+
+    /**
+     * Schedules the modified stores and the unwritten read status changes to be written. Must be
+     * called holding storeLock.
+     */
+    private void scheduleWrite() {
+        if (!this.writeScheduled && (!this.modifiedStores.isEmpty()
+                || this.numLoggedReadStatusesWritten < this.readStatusLog.size())) {
+            this.writeScheduled = true;
+            this.storeExecutor.execute(new StoreWrite());
+        }
+    }
+
+    /**
+     * Task writing the read status changes logged and the stores modified since the last write.
+     */
+    private class StoreWrite implements Runnable {
+        @Override
+        public void run() {
+            synchronized (fileLock) {
+                Map<String, String> storesToWrite = new HashMap<String, String>();
+                boolean compactLog;
+
+                synchronized (storeLock) {
+                    writeScheduled = false;
+
+                    for (Map.Entry<String, ItemStore> currentStore : modifiedStores.entrySet()) {
+                        storesToWrite.put(currentStore.getKey(),
+                                toStoreJson(currentStore.getValue(), readStatusLog.size()));
+                    }
+
+                    modifiedStores.clear();
+                    compactLog = readStatusLog.size() > MAX_LOGGED_READ_STATUSES;
+                }
+
+                // The log is written first, so that no items file records changes that the log
+                // doesn't have.
+                writeUnwrittenReadStatuses();
+
+                for (Map.Entry<String, String> currentStore : storesToWrite.entrySet()) {
+                    try {
+                        writeAtomically(getItemsFile(currentStore.getKey()),
+                                currentStore.getValue());
+                    } catch (IOException e) {
+                        // The store is only a copy, so we do without.
+                    }
+                }
+
+                if (compactLog) {
+                    compactReadStatusLog();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the read status changes that haven't been written to the log file. Must be called
+     * holding fileLock.
+     */
+    private void writeUnwrittenReadStatuses() {
+        StringBuilder unwrittenLines = new StringBuilder();
+
+        synchronized (this.storeLock) {
+            for (int i = this.numLoggedReadStatusesWritten; i < this.readStatusLog.size(); i++) {
+                unwrittenLines.append(this.readStatusLog.get(i)).append(LOG_LINE_SEPARATOR);
+            }
+
+            this.numLoggedReadStatusesWritten = this.readStatusLog.size();
+        }
+
+        if (unwrittenLines.length() == 0) {
+            return;
+        }
+
+        try {
+            if (!this.storeDirectory.isDirectory() && !this.storeDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + this.storeDirectory);
+            }
+
+            IOUtils.appendStringToFile(new File(this.storeDirectory, READ_STATUS_LOG_FILENAME),
+                    STORE_ENCODING, unwrittenLines.toString());
+        } catch (IOException e) {
+            // The store is only a copy, so we do without.
+        }
+    }
+
+    /**
+     * Applies the read status log to every items file, and then empties the log. Must be called
+     * holding fileLock.
+     */
+    private void compactReadStatusLog() {
+        Map<String, String> storesInMemory = new HashMap<String, String>();
+        int numAppliedReadStatuses;
+
+        // The stores in memory already have every change applied, so are written as they are. The
+        // log positions in every items file are counted from the end of the compacted log.
+        synchronized (this.storeLock) {
+            numAppliedReadStatuses = this.readStatusLog.size();
+
+            for (Map.Entry<String, ItemStore> currentStore
+                    : this.getStoresInMemory().entrySet()) {
+                storesInMemory.put(currentStore.getKey(), toStoreJson(currentStore.getValue(), 0));
+            }
+        }
+
+        for (String currentStoreKey : this.getStoreKeysOnDisk()) {
+            if (!storesInMemory.containsKey(currentStoreKey)) {
+                this.updateItemsFile(currentStoreKey, null, 0, true);
+            }
+        }
+
+        for (Map.Entry<String, String> currentStore : storesInMemory.entrySet()) {
+            File itemsFile = null;
+
+            try {
+                itemsFile = this.getItemsFile(currentStore.getKey());
+                writeAtomically(itemsFile, currentStore.getValue());
+            } catch (IOException e) {
+                // An items file left counting from the old log would be read wrongly.
+                if (itemsFile != null) {
+                    itemsFile.delete();
+                }
+            }
+        }
+
+        String remainingLines;
+
+        synchronized (this.storeLock) {
+            this.readStatusLog = new ArrayList<String>(this.readStatusLog.subList(
+                    numAppliedReadStatuses, this.readStatusLog.size()));
+            this.numLoggedReadStatusesWritten = this.readStatusLog.size();
+
+            StringBuilder lines = new StringBuilder();
+            for (String currentLine : this.readStatusLog) {
+                lines.append(currentLine).append(LOG_LINE_SEPARATOR);
+            }
+            remainingLines = lines.toString();
+        }
+
+        try {
+            writeAtomically(new File(this.storeDirectory, READ_STATUS_LOG_FILENAME),
+                    remainingLines);
+        } catch (IOException e) {
+            // The store is only a copy, so we do without.
+        }
+    }
+
+    /**
+     * Applies the read status log to the items file of a store that isn't in memory, and if the
+     * given Feed isn't null, marks its Items crawled no later than the given time as read. If
+     * compacting, the log position recorded in the file is counted from the end of the compacted
+     * log. A file that can't be updated is deleted. Must be called holding fileLock.
+     */
+    private void updateItemsFile(String storeKey, Feed markedFeed, long markedTimestamp,
+                                 boolean compacting) {
+        File itemsFile = null;
+
+        try {
+            itemsFile = this.getItemsFile(storeKey);
+            JSONObject storeJson = readJsonObject(itemsFile);
+
+            if (storeJson == null) {
+                return;
+            }
+
+            Map<String, ReadStatus> loggedReadStatuses;
+            int logPosition;
+
+            synchronized (this.storeLock) {
+                loggedReadStatuses
+                        = this.getLoggedReadStatuses(storeJson.getInt("logPosition"));
+                logPosition = compacting ? 0 : this.readStatusLog.size();
+            }
+
+            JSONArray itemsArray = storeJson.getJSONArray("items");
+
+            for (int i = 0; i < itemsArray.length(); i++) {
+                JSONObject currentJsonObject = itemsArray.getJSONObject(i);
+                ReadStatus loggedReadStatus
+                        = loggedReadStatuses.get(currentJsonObject.getString("id"));
+
+                if (loggedReadStatus != null) {
+                    currentJsonObject.put("read", loggedReadStatus == ReadStatus.READ);
+                }
+
+                if (markedFeed != null) {
+                    JSONObject itemJsonObject = currentJsonObject.getJSONObject("item");
+
+                    if (itemJsonObject.getLong("crawlTimeMsec") <= markedTimestamp
+                            && this.isInFeed(itemJsonObject.getJSONObject("origin")
+                            .getString("streamId"), markedFeed)) {
+                        currentJsonObject.put("read", true);
+                    }
+                }
+            }
+
+            storeJson.put("logPosition", logPosition);
+
+            writeAtomically(itemsFile, storeJson.toString());
+
+        } catch (IOException e) {
+            if (itemsFile != null) {
+                itemsFile.delete();
+            }
+        } catch (JSONException e) {
+            if (itemsFile != null) {
+                itemsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the stores that have items files.
+     */
+    private List<String> getStoreKeysOnDisk() {
+        List<String> storeKeys = new ArrayList<String>();
+        File[] itemsFiles = this.itemsDirectory.listFiles();
+
+        if (itemsFiles == null) {
+            return storeKeys;
+        }
+
+        for (File currentFile : itemsFiles) {
+            String filename = currentFile.getName();
+
+            if (filename.endsWith(ITEMS_FILENAME_SUFFIX)) {
+                try {
+                    storeKeys.add(URLDecoder.decode(filename.substring(0,
+                            filename.length() - ITEMS_FILENAME_SUFFIX.length()), STORE_ENCODING));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        return storeKeys;
+    }
+
+    /**
+     * Writes the given JSON array to the given file on the store executor.
+     */
+    private void writeInBackground(final File file, JSONArray json) {
+        final String contents = json.toString();
+
+        this.storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeAtomically(file, contents);
+                } catch (IOException e) {
+                    // The store is only a copy, so we do without.
+                }
+            }
+        });
+    }
+
+    private File getItemsFile(String storeKey) throws UnsupportedEncodingException {
+        return new File(this.itemsDirectory,
+                URLEncoder.encode(storeKey, STORE_ENCODING) + ITEMS_FILENAME_SUFFIX);
+    }
+
+    /**
+     * Reads a JSON array from the given file, returning null if there is no such file.
+     */
+    private static JSONArray readJsonArray(File file) throws IOException, JSONException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        return new JSONArray(IOUtils.readFileAsString(file, STORE_ENCODING));
+    }
+
+    /**
+     * Reads a JSON object from the given file, returning null if there is no such file.
+     */
+    private static JSONObject readJsonObject(File file) throws IOException, JSONException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        return new JSONObject(IOUtils.readFileAsString(file, STORE_ENCODING));
+    }
+
+    /**
+     * Writes the given contents to the given file, by way of a temporary file, so that the file is
+     * never left partially written.
+     */
+    private static void writeAtomically(File file, String contents) throws IOException {
+        File parentDirectory = file.getParentFile();
+
+        if (!parentDirectory.isDirectory() && !parentDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + parentDirectory);
+        }
+
+        File tempFile = new File(file.getPath() + TEMP_FILENAME_SUFFIX);
+
+        IOUtils.writeStringToFile(tempFile, STORE_ENCODING, contents);
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * An Item held by the store, as the JSON object from which it can be decoded again, without
+     * its read status.
+     */
+    private static class StoredItem {
+
+        private final String id;
+        private final long crawlTimestamp;
+        private final String subscriptionId;
+        private final String itemJson;
+
+        // Guarded by storeLock.
+        private ReadStatus readStatus;
+
+        private StoredItem(String id, long crawlTimestamp, String subscriptionId,
+                           String itemJson, ReadStatus readStatus) {
+            this.id = id;
+            this.crawlTimestamp = crawlTimestamp;
+            this.subscriptionId = subscriptionId;
+            this.itemJson = itemJson;
+            this.readStatus = readStatus;
+        }
+
+        private StoredItem(Item item, String itemJson) {
+            this(item.getId(), item.getCrawlTimestamp().getTime(),
+                    item.getParentSubscription().getFeedAddress(), itemJson,
+                    item.getReadStatus());
+        }
+
+        /**
+         * Constructs a StoredItem only for finding the position of the given Item in a store.
+         */
+        private StoredItem(Item item) {
+            this(item.getId(), item.getCrawlTimestamp().getTime(), null, null, null);
+        }
+    }
+
+    /**
+     * The stored Items of a Feed, newest first. Guarded by storeLock.
+     */
+    private static class ItemStore {
+
+        private SortedSet<StoredItem> items = new TreeSet<StoredItem>(STORED_NEWEST_FIRST);
+        private Map<String, StoredItem> itemsById = new HashMap<String, StoredItem>();
+
+        /**
+         * Adds the given Item, replacing any stored copy.
+         */
+        private void put(StoredItem item) {
+            StoredItem existingItem = this.itemsById.put(item.id, item);
+
+            if (existingItem != null) {
+                this.items.remove(existingItem);
+            }
+
+            this.items.add(item);
+        }
+
+        private void remove(StoredItem item) {
+            this.items.remove(item);
+            this.itemsById.remove(item.id);
+        }
+
+        private void clear() {
+            this.items.clear();
+            this.itemsById.clear();
+        }
+    }
+
+    /**
+     * Continuation of a page of Items served from the store, identifying the last Item served.
+     */
+    private static class StoreContinuation extends Continuation {
+
+        private Item lastItem;
+
+        private StoreContinuation(Item lastItem, Feed associatedFeed) {
+            super(lastItem.getCrawlTimestamp().getTime(), associatedFeed);
+            this.lastItem = lastItem;
+        }
+
+        private Item getLastItem() {
+            return this.lastItem;
+        }
+    }
+}
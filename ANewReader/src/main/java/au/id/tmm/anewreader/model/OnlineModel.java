@@ -0,0 +1,1750 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import au.id.tmm.anewreader.model.net.ReaderServiceRequestHelper;
+import au.id.tmm.anewreader.utility.ComposableFuture;
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+import au.id.tmm.anewreader.utility.LatencyHistogram;
+import au.id.tmm.anewreader.utility.SingleFlight;
+import au.id.tmm.anewreader.utility.network.ParamValuePair;
+
+/**
+ * Model retrieving Items and Feeds from the api.
+ * <p/>
+ * In terms of design, this class leaves much to be desired. It is too large, with too many
+ * responsibilities. Instantiation of Feeds and Items should be delegated to dedicated factories,
+ * their products accessible through the Model interface.
+ */
+class OnlineModel implements Model {
+
+    private static final int NUM_FETCH_THREADS = 4;
+    private static final int NUM_BATCH_THREADS = 4;
+    private static final int DEFAULT_NUM_ASYNC_THREADS = 3;
+
+    // Below this cache hit ratio, pages of items are retrieved in full from the stream contents
+    // endpoint rather than retrieving their ids and then the content of the uncached items.
+    private static final double STREAM_CONTENTS_HIT_RATIO_THRESHOLD = 0.5;
+
+    // The ids of a page of items are retrieved in slices of this size, so that the Items of each
+    // slice can be retrieved while the ids of the next are.
+    private static final int ITEM_ID_SLICE_SIZE = 10;
+
+    private static final String READ_ITEMS_STREAM = "user/-/state/com.google/read";
+    private static final Pattern READ_STATE_CATEGORY_PATTERN
+            = Pattern.compile("^user/[^/]+/state/com\\.google/read$");
+
+    private static final Pattern SUBSCRIPTION_ID_PATTERN = Pattern.compile("^feed/(.*)$");
+    private static final Pattern LABEL_PATTERN = Pattern.compile("^user/-/label/(.*)$");
+
+    private static final String ITEM_ID_PREFIX = "tag:google.com,2005:reader/item/";
+
+    private static final String SUBSCRIPTIONS_KEY = "subscriptions";
+
+    // These maps are replaced rather than modified when they are refreshed, so that they can be
+    // read safely from the threads decoding Items.
+    private volatile Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+    private volatile Map<String, Category> categories = new HashMap<String, Category>();
+
+    // Sorted, unmodifiable views of the above, rebuilt only when their contents change.
+    private volatile SortedSet<Subscription> subscriptionsSnapshot
+            = Collections.unmodifiableSortedSet(new TreeSet<Subscription>());
+    private volatile SortedSet<Category> categoriesSnapshot
+            = Collections.unmodifiableSortedSet(new TreeSet<Category>());
+
+    // Ids of the subscriptions of items that weren't known to the api when the subscriptions were
+    // last refreshed, and the placeholders standing in for them.
+    private Set<String> unknownSubscriptionIds
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ConcurrentMap<String, Subscription> placeholderSubscriptions
+            = new ConcurrentHashMap<String, Subscription>();
+
+    private SingleFlight<String, SortedSet<Subscription>> subscriptionRequests
+            = new SingleFlight<String, SortedSet<Subscription>>();
+    private ReadingList readingList = new ReadingList(this, null, 0);
+
+    // Anything held for an Item by its index is cleared once no copy of the Item is in memory.
+    private ItemIds itemIds = new ItemIds(new ItemIds.Listener() {
+        @Override
+        public void released(int index) {
+            readStates.clear(index);
+            summaries.remove(index);
+        }
+    });
+    private ItemCache itemCache = new ItemCache(this.itemIds);
+    private ReadStates readStates = new ReadStates();
+
+    private ItemSummaries summaries = new ItemSummaries(new ItemSummaries.Loader() {
+        @Override
+        public String load(Item item) throws IOException {
+            return loadSummary(item);
+        }
+    });
+    private CacheHitRatio cacheHitRatio = new CacheHitRatio();
+
+    // Second tier of the item cache on disk, or null if there isn't one.
+    private volatile ItemDiskCache itemDiskCache;
+
+    // Statistics of the item cache beyond those it counts itself.
+    private AtomicLong diskHitCount = new AtomicLong();
+    private AtomicLong apiRetrievedItemCount = new AtomicLong();
+    private LatencyHistogram apiRetrievalLatencies = new LatencyHistogram();
+
+    private UnreadCounts unreadCounts = new UnreadCounts(this);
+    private TagEditQueue tagEdits = new TagEditQueue(this);
+
+    private SingleFlight<ItemRequestKey, ListWithContinuation<Item>> itemRequests
+            = new SingleFlight<ItemRequestKey, ListWithContinuation<Item>>();
+
+    private ExecutorService fetchExecutor
+            = ConcurrencyUtils.newBoundedThreadPool(NUM_FETCH_THREADS, "item-fetch");
+
+    // Batches of Item content are retrieved on their own executor. Tasks on the fetch executor
+    // wait on these batches, so sharing a single bounded executor could deadlock.
+    private ExecutorService batchExecutor
+            = ConcurrencyUtils.newBoundedThreadPool(NUM_BATCH_THREADS, "item-batch");
+
+    // Items are written to the disk cache one batch at a time, in the background.
+    private ExecutorService diskCacheExecutor
+            = ConcurrencyUtils.newBoundedThreadPool(1, "item-disk-cache");
+
+    // Executor on which the asynchronous variants of the methods of this class are run.
+    private volatile Executor asyncExecutor
+            = ConcurrencyUtils.newBoundedThreadPool(DEFAULT_NUM_ASYNC_THREADS, "model-async");
+
+    private Account parentAccount;
+
+    public OnlineModel(Account parentAccount) {
+        this.parentAccount = parentAccount;
+    }
+
+    protected Account getParentAccount() {
+        return parentAccount;
+    }
+
+    /**
+     * Sets the Executor on which the asynchronous variants of the methods of this class are run.
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public Executor getAsyncExecutor() {
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Submits the given task to the async executor, returning a future for its result.
+     */
+    protected <V> ComposableFuture<V> submitAsync(Callable<V> task) {
+        ComposableFuture<V> future = new ComposableFuture<V>(task);
+        this.asyncExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Asynchronous variant of {@link #getSubscriptions}.
+     */
+    public ComposableFuture<SortedSet<Subscription>> getSubscriptionsAsync() {
+        return this.submitAsync(new Callable<SortedSet<Subscription>>() {
+            @Override
+            public SortedSet<Subscription> call() throws IOException {
+                return getSubscriptions();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getCategories}.
+     */
+    public ComposableFuture<SortedSet<Category>> getCategoriesAsync() {
+        return this.submitAsync(new Callable<SortedSet<Category>>() {
+            @Override
+            public SortedSet<Category> call() throws IOException {
+                return getCategories();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #getItems}.
+     */
+    public ComposableFuture<ListWithContinuation<Item>> getItemsAsync(
+            final Feed feed, final ReadStatus readStatus, final int numItemsLimit,
+            final Date olderThan, final Continuation continuation) {
+        return this.submitAsync(new Callable<ListWithContinuation<Item>>() {
+            @Override
+            public ListWithContinuation<Item> call() throws IOException {
+                return getItems(feed, readStatus, numItemsLimit, olderThan, continuation);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #refreshUnreadCounts}.
+     */
+    public ComposableFuture<Void> refreshUnreadCountsAsync() {
+        return this.submitAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                refreshUnreadCounts();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get the subscriptions associated with this model.
+     */
+    public SortedSet<Subscription> getSubscriptions() throws IOException {
+        return this.refreshSubscriptions();
+    }
+
+    /**
+     * Retrieves the subscriptions from the api, sharing the retrieval with any concurrent
+     * refresh.
+     */
+    private SortedSet<Subscription> refreshSubscriptions() throws IOException {
+        return this.subscriptionRequests.execute(SUBSCRIPTIONS_KEY,
+                new Callable<SortedSet<Subscription>>() {
+                    @Override
+                    public SortedSet<Subscription> call() throws IOException {
+                        return syncSubscriptions();
+                    }
+                });
+    }
+
+    /**
+     * Retrieves the subscriptions from the api for {@link #refreshSubscriptions}, and synchronises
+     * our subscriptions with them.
+     */
+    private SortedSet<Subscription> syncSubscriptions() throws IOException {
+        try {
+            return this.applySubscriptionsJson(this.requestSubscriptionsJson());
+        } catch (JSONException e) {
+            throw new ApiParseException(e);
+        }
+    }
+
+    /**
+     * Retrieves the array of subscription JSON objects from the api.
+     */
+    protected JSONArray requestSubscriptionsJson() throws IOException, JSONException {
+        final String SUBSCRIPTIONS_URL
+                = this.parentAccount.getReaderService().getBaseUrl()
+                + "/reader/api/0/subscription/list?output=json";
+
+        ReaderServiceRequestHelper requestHelper
+                = new ReaderServiceRequestHelper(this.parentAccount.getAuthHelper());
+
+        return new JSONObject(requestHelper.performGetRequest(SUBSCRIPTIONS_URL))
+                .getJSONArray("subscriptions");
+    }
+
+    /**
+     * Synchronises our subscriptions with the given array of subscription JSON objects.
+     * Subscriptions we already have are updated in place rather than replaced, so that Items and
+     * other objects referring to them remain valid. Returns an unmodifiable sorted snapshot of the
+     * subscriptions, which is only rebuilt if a subscription was added, removed or changed.
+     */
+    protected synchronized SortedSet<Subscription> applySubscriptionsJson(JSONArray responseArray)
+            throws JSONException {
+
+        Map<String, Subscription> previousSubscriptions = this.subscriptions;
+        Map<String, Subscription> newSubscriptions = new HashMap<String, Subscription>();
+        boolean subscriptionsChanged = false;
+
+        for (int i = 0; i < responseArray.length(); i++) {
+            JSONObject subscriptionJsonObject = responseArray.getJSONObject(i);
+
+            Subscription subscription = previousSubscriptions.get(
+                    this.extractSubscriptionId(subscriptionJsonObject.getString("id")));
+
+            if (subscription == null) {
+                subscription = this.getSubscriptionFromJson(subscriptionJsonObject,
+                        this.parentAccount);
+                subscriptionsChanged = true;
+            } else if (this.updateSubscriptionFromJson(subscription,
+                    subscriptionJsonObject)) {
+                subscriptionsChanged = true;
+            }
+
+            newSubscriptions.put(subscription.getId(), subscription);
+        }
+
+        // Every subscription is either new or was previously present, so if none were added a
+        // difference in size means some were removed.
+        if (newSubscriptions.size() != previousSubscriptions.size()) {
+            subscriptionsChanged = true;
+        }
+
+        this.subscriptions = newSubscriptions;
+
+        if (subscriptionsChanged) {
+            this.subscriptionsSnapshot = getSubscriptionsSnapshot(newSubscriptions.values());
+        }
+
+        // Subscriptions we didn't know about may now be known, in which case their placeholders
+        // are no longer needed.
+        this.unknownSubscriptionIds.clear();
+        this.placeholderSubscriptions.keySet().removeAll(newSubscriptions.keySet());
+
+        return this.subscriptionsSnapshot;
+
+    }
+
+    /**
+     * Returns an unmodifiable sorted set of the given subscriptions. The set is sorted by the
+     * titles the subscriptions have now, so it stays in order if their titles are later updated
+     * while it is still in use.
+     */
+    private static SortedSet<Subscription> getSubscriptionsSnapshot(
+            Collection<Subscription> subscriptions) {
+
+        final Map<Subscription, String> titles = new HashMap<Subscription, String>();
+
+        for (Subscription currentSubscription : subscriptions) {
+            titles.put(currentSubscription, currentSubscription.getTitle());
+        }
+
+        Comparator<Subscription> titleOrder = new Comparator<Subscription>() {
+            @Override
+            public int compare(Subscription subscription, Subscription otherSubscription) {
+                int titleComparison = getTitle(subscription).compareTo(getTitle(otherSubscription));
+
+                return titleComparison != 0
+                        ? titleComparison
+                        : subscription.getId().compareTo(otherSubscription.getId());
+            }
+
+            private String getTitle(Subscription subscription) {
+                String title = titles.get(subscription);
+                return title != null ? title : subscription.getTitle();
+            }
+        };
+
+        SortedSet<Subscription> snapshot = new TreeSet<Subscription>(titleOrder);
+        snapshot.addAll(subscriptions);
+
+        return Collections.unmodifiableSortedSet(snapshot);
+    }
+
+    /**
+     * Get the categories associated with this model. As with the subscriptions, categories we
+     * already have are retained, and an unmodifiable sorted snapshot is returned which is only
+     * rebuilt if a category was added or removed.
+     */
+    public SortedSet<Category> getCategories() throws IOException {
+        return this.refreshCategories();
+    }
+
+    /**
+     * Retrieves the categories from the api, and synchronises our categories with them.
+     */
+    private SortedSet<Category> refreshCategories() throws IOException {
+        try {
+            return this.applyCategoriesJson(this.requestCategoriesJson());
+        } catch (JSONException e) {
+            throw new ApiParseException(e);
+        }
+    }
+
+    /**
+     * Retrieves the array of tag JSON objects from the api, which includes the categories.
+     */
+    protected JSONArray requestCategoriesJson() throws IOException, JSONException {
+        final String CATEGORIES_BASE_URL = this.parentAccount.getReaderService().getBaseUrl()
+                + "/reader/api/0/tag/list?output=json";
+
+        ReaderServiceRequestHelper requestHelper
+                = new ReaderServiceRequestHelper(this.parentAccount.getAuthHelper());
+
+        return new JSONObject(requestHelper.performGetRequest(CATEGORIES_BASE_URL))
+                .getJSONArray("tags");
+    }
+
+    /**
+     * Synchronises our categories with the given array of tag JSON objects, returning a snapshot
+     * of the categories as per {@link #getCategories}.
+     */
+    protected synchronized SortedSet<Category> applyCategoriesJson(JSONArray categoriesArray)
+            throws JSONException {
+
+        Map<String, Category> previousCategories = this.categories;
+        Map<String, Category> newCategories = new HashMap<String, Category>();
+        boolean categoriesChanged = false;
+
+        for (int i = 0; i < categoriesArray.length(); i++) {
+            String id = categoriesArray.getJSONObject(i).getString("id");
+
+            // The tags also include states such as starred, which aren't categories.
+            if (!LABEL_PATTERN.matcher(id).matches()) {
+                continue;
+            }
+
+            if (!previousCategories.containsKey(id)) {
+                categoriesChanged = true;
+            }
+
+            newCategories.put(id, this.getCategoryFromId(id, this.parentAccount));
+        }
+
+        if (newCategories.size() != previousCategories.size()) {
+            categoriesChanged = true;
+        }
+
+        this.categories = newCategories;
+
+        if (categoriesChanged) {
+            this.categoriesSnapshot = Collections.unmodifiableSortedSet(
+                    new TreeSet<Category>(newCategories.values()));
+        }
+
+        return this.categoriesSnapshot;
+
+    }
+
+    /**
+     * Retrieve items according to the given parameters. If readStatus is null, both read and unread
+     * items will be returned.
+     * <p/>
+     * Note the retrieval of only read items is not currently supported. The api doesn't allow this
+     * directly, and it is not currently available to the end user classes. Requesting only read
+     * items results in an UnsupportedOperationException being thrown.
+     * <p/>
+     * Concurrent calls with the same parameters share a single retrieval from the api. Each caller
+     * receives its own copy of the list of Items.
+     */
+    public ListWithContinuation<Item> getItems(Feed feed, ReadStatus readStatus,
+                                               int numItemsLimit, Date olderThan,
+                                               Continuation continuation) throws IOException {
+        return this.getItems(feed, readStatus, numItemsLimit, olderThan, null, continuation);
+    }
+
+    /**
+     * Retrieve items as per {@link #getItems(Feed, ReadStatus, int, Date, Continuation)}, only
+     * returning items crawled after newerThan. If newerThan is null, no such restriction is
+     * applied. This allows a feed to be refreshed by retrieving only the items that have arrived
+     * since it was last loaded.
+     */
+    public ListWithContinuation<Item> getItems(final Feed feed, final ReadStatus readStatus,
+                                               final int numItemsLimit, final Date olderThan,
+                                               final Date newerThan,
+                                               final Continuation continuation) throws IOException {
+
+        ListWithContinuation<Item> sharedItems = this.itemRequests.execute(
+                new ItemRequestKey(feed, readStatus, numItemsLimit, olderThan, newerThan,
+                        continuation),
+                new Callable<ListWithContinuation<Item>>() {
+                    @Override
+                    public ListWithContinuation<Item> call() throws IOException {
+                        return loadItems(feed, readStatus, numItemsLimit, olderThan, newerThan,
+                                continuation);
+                    }
+                });
+
+        this.applyPendingReadStatuses(sharedItems.getList());
+
+        return new ListWithContinuation<Item>(new ArrayList<Item>(sharedItems.getList()),
+                sharedItems.getContinuation());
+    }
+
+    /**
+     * Retrieves items from the cache and the api for {@link #getItems}.
+     */
+    private ListWithContinuation<Item> loadItems(Feed feed, ReadStatus readStatus,
+                                                 int numItemsLimit, Date olderThan,
+                                                 Date newerThan,
+                                                 Continuation continuation) throws IOException {
+        try {
+
+            if (readStatus == ReadStatus.READ) {
+
+                // This is made very difficult by the API, and is a functionality used by the app,
+                // so we just leave as unsupported.
+                throw new UnsupportedOperationException();
+
+            } else if (this.cacheHitRatio.get() < STREAM_CONTENTS_HIT_RATIO_THRESHOLD) {
+
+                // Most of the items are unlikely to be cached, so retrieving their ids first would
+                // save little. Instead we retrieve the items in full in a single request.
+                return this.getItemsFromStreamContents(feed, readStatus, numItemsLimit,
+                        olderThan, newerThan, continuation);
+
+            } else if (readStatus == ReadStatus.UNREAD) {
+
+                return this.getItemsFromIdSlices(feed, ReadStatus.UNREAD, numItemsLimit,
+                        olderThan, newerThan, continuation);
+
+            } else {
+
+                // The unread ids are retrieved in the background while we retrieve the full list
+                // of ids and the corresponding Items.
+                Future<List<String>> unreadItemIds = this.requestUnreadItemIdsInBackground(feed,
+                        numItemsLimit, olderThan, newerThan, continuation);
+
+                try {
+                    ListWithContinuation<Item> returnedItems = this.getItemsFromIdSlices(feed,
+                            null, numItemsLimit, olderThan, newerThan, continuation);
+
+                    this.setReadStatuses(returnedItems.getList(),
+                            ConcurrencyUtils.getResult(unreadItemIds));
+
+                    return returnedItems;
+                } finally {
+                    unreadItemIds.cancel(true);
+                }
+
+            }
+        } catch (JSONException e) {
+            throw new ApiParseException(e);
+        }
+
+    }
+
+    /**
+     * Retrieves the ids of a page of items in slices, following the continuation of each slice to
+     * the next. The Items of each slice are retrieved on the fetch executor as soon as its ids
+     * have arrived, while the ids of the next slice are retrieved, and the Items of the last slice
+     * on the calling thread. The Items are returned in the order of their ids. If readStatus is
+     * null, the read statuses of the Items are left to the caller.
+     */
+    private ListWithContinuation<Item> getItemsFromIdSlices(Feed feed,
+                                                            final ReadStatus readStatus,
+                                                            int numItemsLimit, Date olderThan,
+                                                            Date newerThan,
+                                                            Continuation continuation)
+            throws IOException, JSONException {
+
+        List<Future<List<Item>>> earlierSlices = new ArrayList<Future<List<Item>>>();
+        boolean retrievedAllSlices = false;
+
+        try {
+            int numItemsRemaining = numItemsLimit;
+            Continuation nextContinuation = continuation;
+            List<String> sliceIds;
+
+            while (true) {
+                ListWithContinuation<String> slice = this.getItemIdsFromApi(feed,
+                        readStatus == ReadStatus.UNREAD,
+                        Math.min(ITEM_ID_SLICE_SIZE, numItemsRemaining), olderThan, newerThan,
+                        nextContinuation);
+
+                sliceIds = slice.getList();
+                numItemsRemaining -= sliceIds.size();
+                nextContinuation = slice.getContinuation();
+
+                if (numItemsRemaining <= 0 || nextContinuation == null || sliceIds.isEmpty()) {
+                    break;
+                }
+
+                final List<String> earlierSliceIds = sliceIds;
+                earlierSlices.add(this.fetchExecutor.submit(new Callable<List<Item>>() {
+                    @Override
+                    public List<Item> call() throws IOException {
+                        return getItemsFromIds(earlierSliceIds, readStatus);
+                    }
+                }));
+            }
+
+            List<Item> lastSliceItems = this.getItemsFromIds(sliceIds, readStatus);
+
+            List<Item> returnedItems = new ArrayList<Item>(numItemsLimit - numItemsRemaining);
+            for (Future<List<Item>> currentSlice : earlierSlices) {
+                returnedItems.addAll(ConcurrencyUtils.getResult(currentSlice));
+            }
+            returnedItems.addAll(lastSliceItems);
+
+            retrievedAllSlices = true;
+
+            return new ListWithContinuation<Item>(returnedItems, nextContinuation);
+        } finally {
+            if (!retrievedAllSlices) {
+                ConcurrencyUtils.cancelAll(earlierSlices);
+            }
+        }
+    }
+
+    /**
+     * The parameters of a call to {@link #getItems}, used to identify identical concurrent
+     * requests.
+     */
+    private static class ItemRequestKey {
+
+        private Feed feed;
+        private ReadStatus readStatus;
+        private int numItemsLimit;
+        private Date olderThan;
+        private Date newerThan;
+        private Continuation continuation;
+
+        private ItemRequestKey(Feed feed, ReadStatus readStatus, int numItemsLimit,
+                               Date olderThan, Date newerThan, Continuation continuation) {
+            this.feed = feed;
+            this.readStatus = readStatus;
+            this.numItemsLimit = numItemsLimit;
+            this.olderThan = olderThan;
+            this.newerThan = newerThan;
+            this.continuation = continuation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ItemRequestKey that = (ItemRequestKey) o;
+
+            if (numItemsLimit != that.numItemsLimit) return false;
+            if (!feed.equals(that.feed)) return false;
+            if (readStatus != that.readStatus) return false;
+            if (olderThan != null ? !olderThan.equals(that.olderThan) : that.olderThan != null)
+                return false;
+            if (newerThan != null ? !newerThan.equals(that.newerThan) : that.newerThan != null)
+                return false;
+            return !(continuation != null ? !continuation.equals(that.continuation) : that.continuation != null);
+
+        }
+
+        @Override
+        public int hashCode() {
+            int result = feed.hashCode();
+            result = 31 * result + (readStatus != null ? readStatus.hashCode() : 0);
+            result = 31 * result + numItemsLimit;
+            result = 31 * result + (olderThan != null ? olderThan.hashCode() : 0);
+            result = 31 * result + (newerThan != null ? newerThan.hashCode() : 0);
+            result = 31 * result + (continuation != null ? continuation.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * Submits a request for the ids of the unread items matching the given parameters to the
+     * fetch executor.
+     */
+    private Future<List<String>> requestUnreadItemIdsInBackground(final Feed feed,
+                                                                  final int numItemsLimit,
+                                                                  final Date olderThan,
+                                                                  final Date newerThan,
+                                                                  final Continuation continuation) {
+        return this.fetchExecutor.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                try {
+                    return getItemIdsFromApi(feed, true, numItemsLimit, olderThan, newerThan,
+                            continuation).getList();
+                } catch (JSONException e) {
+                    throw new ApiParseException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the read status of each of the given Items according to whether its id is in the given
+     * list of unread item ids.
+     */
+    private void setReadStatuses(List<Item> items, List<String> unreadItemIds) {
+        // Sized to the page, and faster than finding the index of each id under the ItemIds lock.
+        Set<String> unreadItemIdSet = new HashSet<String>(unreadItemIds);
+
+        for (Item currentItem : items) {
+            this.readStates.set(currentItem, unreadItemIdSet.contains(currentItem.getId())
+                    ? ReadStatus.UNREAD : ReadStatus.READ);
+        }
+    }
+
+    /**
+     * Changes the read status of the given Item, adjusting the unread counts accordingly. The
+     * change is sent to the api in the background, so this method doesn't block on the network.
+     */
+    public void changeReadStatus(Item item, ReadStatus readStatus) {
+        ReadStatus previousReadStatus = this.readStates.getAndSet(item, readStatus);
+
+        if (previousReadStatus == readStatus) {
+            return;
+        }
+
+        this.unreadCounts.applyReadStatusChange(item, previousReadStatus, readStatus);
+
+        if (readStatus == ReadStatus.READ) {
+            this.tagEdits.addTag(item.getId(), READ_ITEMS_STREAM);
+        } else {
+            this.tagEdits.removeTag(item.getId(), READ_ITEMS_STREAM);
+        }
+    }
+
+    /**
+     * Sets the read status of each of the given Items whose read status has been changed locally
+     * but not yet sent to the api, as the api will still report the old read status.
+     */
+    private void applyPendingReadStatuses(List<Item> items) {
+        for (Item currentItem : items) {
+            Boolean pendingRead = this.tagEdits.getPendingEdit(currentItem.getId(),
+                    READ_ITEMS_STREAM);
+
+            if (pendingRead != null) {
+                this.readStates.set(currentItem,
+                        pendingRead ? ReadStatus.READ : ReadStatus.UNREAD);
+            }
+        }
+    }
+
+    /**
+     * Marks every Item in the given Feed crawled no later than olderThan as read, or every Item if
+     * olderThan is null, using a single request to the api. The Items of the Feed in memory are
+     * marked as read and the unread counts adjusted before the request is made. If the request
+     * fails, these are corrected when the Items and unread counts are next retrieved.
+     * <p/>
+     * Items only held in the disk cache keep their stored read status, but this is replaced by
+     * the one retrieved from the api whenever they are decoded.
+     */
+    public void markAllAsRead(Feed feed, Date olderThan) throws IOException {
+        final String MARK_ALL_AS_READ_URL = this.parentAccount.getReaderService().getBaseUrl()
+                + "/reader/api/0/mark-all-as-read";
+
+        Date timestamp = olderThan != null ? olderThan : new Date();
+
+        // This includes Items that have been evicted from the cache but are still displayed, or
+        // held by the offline store.
+        for (Item currentItem : this.itemIds.getItems()) {
+            if (!feed.containsSubscription(currentItem.getParentSubscription())
+                    || currentItem.getCrawlTimestamp().after(timestamp)) {
+                continue;
+            }
+
+            // Any pending change to the Item's read status is superseded by this request.
+            this.tagEdits.discardEdit(currentItem.getId(), READ_ITEMS_STREAM);
+
+            ReadStatus previousReadStatus
+                    = this.readStates.getAndSet(currentItem, ReadStatus.READ);
+
+            // Without a cut-off every unread Item in the Feed is marked as read, so its counts are
+            // simply cleared below. Otherwise we can only account for the Items we have.
+            if (olderThan != null) {
+                this.unreadCounts.applyReadStatusChange(currentItem, previousReadStatus,
+                        ReadStatus.READ);
+            }
+        }
+
+        if (olderThan == null) {
+            this.unreadCounts.applyMarkAllAsRead(feed);
+        }
+
+        ReaderServiceRequestHelper requestHelper
+                = new ReaderServiceRequestHelper(this.parentAccount.getAuthHelper());
+
+        // The api takes the timestamp in microseconds.
+        requestHelper.performPostRequest(MARK_ALL_AS_READ_URL,
+                new ParamValuePair("s", feed.getEncodedFeedAddress()),
+                new ParamValuePair("ts", Long.toString(timestamp.getTime() * 1000)));
+    }
+
+    /**
+     * Asynchronous variant of {@link #markAllAsRead}.
+     */
+    public ComposableFuture<Void> markAllAsReadAsync(final Feed feed, final Date olderThan) {
+        return this.submitAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                markAllAsRead(feed, olderThan);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sends any changes in read status that are yet to be sent to the api, blocking until they
+     * have been sent.
+     */
+    public void flushReadStatusChanges() throws IOException {
+        this.tagEdits.flush();
+    }
+
+    /**
+     * For a list of item ids, returns the corresponding Item objects. These are retrieved from the
+     * ItemCache if possible, otherwise they are retrieved from the api. Ids for which no Item
+     * could be retrieved, such as those of deleted items, are left out.
+     */
+    private List<Item> getItemsFromIds(List<String> itemIds, final ReadStatus readStatus)
+            throws IOException {
+
+        // The cache retrieves the uncached items from the disk cache, and the rest from the api
+        // in bulk. Items being retrieved by another thread are waited for rather than retrieved
+        // again.
+        final AtomicInteger numItemsRetrieved = new AtomicInteger();
+
+        List<Item> returnedItems = this.itemCache.getOrLoad(itemIds, new ItemCache.Loader() {
+            @Override
+            public List<Item> load(List<String> ids) throws IOException {
+                List<Item> loadedItems = getItemsFromDiskCache(ids);
+
+                // The ids are held by the cache while they are loaded, so all have indexes.
+                int[] loadedIndexes = new int[loadedItems.size()];
+                for (int i = 0; i < loadedIndexes.length; i++) {
+                    loadedIndexes[i] = loadedItems.get(i).getIndex();
+                }
+                Arrays.sort(loadedIndexes);
+
+                List<String> remainingIds = new ArrayList<String>();
+                for (String currentId : ids) {
+                    int currentIndex = OnlineModel.this.itemIds.find(currentId);
+
+                    if (Arrays.binarySearch(loadedIndexes, currentIndex) < 0) {
+                        remainingIds.add(currentId);
+                    }
+                }
+
+                diskHitCount.addAndGet(loadedItems.size());
+                numItemsRetrieved.set(remainingIds.size());
+
+                if (!remainingIds.isEmpty()) {
+                    long startTime = System.currentTimeMillis();
+
+                    loadedItems.addAll(getItemsFromApi(remainingIds, readStatus));
+
+                    apiRetrievalLatencies.record(System.currentTimeMillis() - startTime);
+                    apiRetrievedItemCount.addAndGet(remainingIds.size());
+                }
+
+                return loadedItems;
+            }
+        });
+
+        this.cacheHitRatio.record(itemIds.size() - numItemsRetrieved.get(), itemIds.size());
+
+        returnedItems.removeAll(Collections.singleton((Item) null));
+
+        if (readStatus != null) {
+            for (Item currentItem : returnedItems) {
+                this.readStates.set(currentItem, readStatus);
+            }
+        }
+
+        return returnedItems;
+    }
+
+    /**
+     * Construct a Subscription object from a JSON object retrieved from the api.
+     */
+    private Subscription getSubscriptionFromJson(JSONObject subscriptionJsonObject,
+                                                 Account parentAccount) throws JSONException {
+        String id = this.extractSubscriptionId(subscriptionJsonObject.getString("id"));
+
+        String title = subscriptionJsonObject.getString("title");
+        String url = subscriptionJsonObject.getString("url");
+        String htmlUrl = subscriptionJsonObject.getString("htmlUrl");
+        String iconUrl = subscriptionJsonObject.getString("iconUrl");
+
+        Set<Category> categories = this.getSubscriptionCategoriesFromJson(subscriptionJsonObject);
+
+        return new Subscription(id, title, categories, url, htmlUrl, iconUrl,
+                this.unreadCounts.getLastKnownCount(subscriptionJsonObject.getString("id")), this);
+    }
+
+    /**
+     * Updates an existing Subscription from a JSON object retrieved from the api. Returns true if
+     * any of its details changed.
+     */
+    private boolean updateSubscriptionFromJson(Subscription subscription,
+                                               JSONObject subscriptionJsonObject)
+            throws JSONException {
+        return subscription.update(subscriptionJsonObject.getString("title"),
+                this.getSubscriptionCategoriesFromJson(subscriptionJsonObject),
+                subscriptionJsonObject.getString("url"),
+                subscriptionJsonObject.getString("htmlUrl"),
+                subscriptionJsonObject.getString("iconUrl"));
+    }
+
+    /**
+     * Constructs the set of Categories of a subscription from a subscription JSON object retrieved
+     * from the api.
+     */
+    private Set<Category> getSubscriptionCategoriesFromJson(JSONObject subscriptionJsonObject)
+            throws JSONException {
+        Set<Category> categories = new TreeSet<Category>();
+
+        JSONArray categoriesArray = subscriptionJsonObject.getJSONArray("categories");
+
+        for (int i = 0; i < categoriesArray.length(); i++) {
+            categories.add(this.getCategoryFromJson(categoriesArray.getJSONObject(i),
+                    this.parentAccount));
+        }
+
+        return categories;
+    }
+
+    /**
+     * Extract a subscription's id from the id field in a subscription JSON object retrieved from
+     * the api.
+     */
+    private String extractSubscriptionId(String idFromJson) {
+        Matcher matcher = SUBSCRIPTION_ID_PATTERN.matcher(idFromJson);
+        if (matcher.find()) {
+            return matcher.group(1);
+        } else {
+            throw new ApiParseException();
+        }
+    }
+
+    /**
+     * Construct a Category object from a JSON object retrieved from the api.
+     */
+    private Category getCategoryFromJson(JSONObject categoryJsonObject, Account parentAccount)
+            throws JSONException {
+        return this.getCategoryFromId(categoryJsonObject.getString("id"), parentAccount);
+    }
+
+    /**
+     * Returns the Category for a category id retrieved from the api. If we already have a Category
+     * with that id it is returned, otherwise a new one is constructed.
+     */
+    private Category getCategoryFromId(String id, Account parentAccount) {
+        Category existingCategory = this.categories.get(id);
+        if (existingCategory != null) {
+            return existingCategory;
+        }
+
+        Matcher matcher = LABEL_PATTERN.matcher(id);
+        if (matcher.find()) {
+            return new Category(id, matcher.group(1), this.unreadCounts.getLastKnownCount(id),
+                    this);
+        } else {
+            throw new ApiParseException();
+        }
+    }
+
+    /**
+     * Constructs an Item object from a JSON object retrieved from the api, recording its read
+     * status as per the decoding batch.
+     */
+    private Item getItemFromJson(JSONObject itemJsonObject, ReadStatus readStatus,
+                                 DecodingBatch decodingBatch) throws JSONException, IOException {
+        String tagId = itemJsonObject.getString("id");
+        if (!tagId.startsWith(ITEM_ID_PREFIX)) {
+            throw new ApiParseException();
+        }
+        String id = tagId.substring(ITEM_ID_PREFIX.length());
+
+        String title = itemJsonObject.getString("title");
+        String canonicalLink
+                = itemJsonObject.getJSONArray("canonical").getJSONObject(0).getString("href");
+        String alternateLink
+                = itemJsonObject.getJSONArray("alternate").getJSONObject(0).getString("href");
+
+        Date publishedTimestamp = new Date(Long.parseLong(itemJsonObject.getString("published")));
+        Date updatedTimestamp = new Date(Long.parseLong(itemJsonObject.getString("updated")));
+        Date crawlTimestamp = new Date(Long.parseLong(itemJsonObject.getString("crawlTimeMsec")));
+
+        // Items stored without their summary have it loaded when it is needed.
+        JSONObject summaryJsonObject = itemJsonObject.optJSONObject("summary");
+        String summary = summaryJsonObject != null ? summaryJsonObject.getString("content") : null;
+        String author = itemJsonObject.getString("author");
+
+        Set<Category> categories = new TreeSet<Category>();
+
+        JSONArray categoriesArray = itemJsonObject.getJSONArray("categories");
+
+        // If we haven't been told the read status of the item, it is taken from the read state
+        // category.
+        ReadStatus itemReadStatus = readStatus;
+        boolean inReadStateCategory = false;
+
+        for (int i = 0; i < categoriesArray.length(); i++) {
+            if (READ_STATE_CATEGORY_PATTERN.matcher(categoriesArray.getString(i)).matches()) {
+                inReadStateCategory = true;
+            }
+
+            if (categoriesArray.getString(i).matches("\\^user/-/label/(.*)$")) {
+
+                String currentId = categoriesArray.getString(i);
+
+                if (this.categories.containsKey(currentId)) {
+                    categories.add(this.categories.get(currentId));
+                } else {
+                    // The category associated with the item is not in our categories array. This
+                    // problem should be fixed when this class is refactored as mentioned above.
+                    // For the moment, we simply throw a RuntimeException.
+                    throw new RuntimeException();
+                }
+            }
+        }
+
+        Subscription parentSubscription
+                = this.resolveSubscription(itemJsonObject.getJSONObject("origin"), decodingBatch);
+
+        if (itemReadStatus == null) {
+            itemReadStatus = inReadStateCategory ? ReadStatus.READ : ReadStatus.UNREAD;
+        }
+
+        // The index acquired here is held by the Item until it is garbage collected.
+        Item item = new Item(id, this.itemIds.acquire(id), title, canonicalLink, alternateLink,
+                publishedTimestamp, updatedTimestamp, crawlTimestamp,
+                author, categories, parentSubscription, this.summaries, this.readStates);
+        this.itemIds.releaseWhenCollected(item);
+
+        if (summary != null) {
+            this.summaries.put(item.getIndex(), summary);
+        }
+
+        if (decodingBatch.replaceReadStatuses) {
+            this.readStates.set(item, itemReadStatus);
+        } else {
+            this.readStates.setIfUnknown(item, itemReadStatus);
+        }
+
+        return item;
+    }
+
+    /**
+     * Returns the Subscription for the origin of an item. If the subscription isn't known, the
+     * subscriptions are refreshed, at most once per decoding batch and shared with any other
+     * concurrent refresh. If the subscription is still unknown after that, its id is remembered so
+     * that later items from it don't cause further refreshes, and a placeholder Subscription
+     * constructed from the origin is returned.
+     */
+    private Subscription resolveSubscription(JSONObject originJsonObject,
+                                             DecodingBatch decodingBatch)
+            throws JSONException, IOException {
+
+        String streamId = this.extractSubscriptionId(originJsonObject.getString("streamId"));
+
+        Subscription subscription = this.subscriptions.get(streamId);
+
+        if (subscription == null
+                && !decodingBatch.subscriptionsRefreshed
+                && !this.unknownSubscriptionIds.contains(streamId)) {
+            this.refreshSubscriptions();
+            decodingBatch.subscriptionsRefreshed = true;
+            subscription = this.subscriptions.get(streamId);
+        }
+
+        if (subscription == null) {
+            this.unknownSubscriptionIds.add(streamId);
+            subscription = this.getPlaceholderSubscription(streamId, originJsonObject);
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Returns a placeholder Subscription for a subscription the api hasn't told us about,
+     * constructed from the origin of one of its items. The same placeholder is returned for each
+     * item from that subscription.
+     */
+    private Subscription getPlaceholderSubscription(String id, JSONObject originJsonObject) {
+        Subscription placeholder = this.placeholderSubscriptions.get(id);
+
+        if (placeholder == null) {
+            Subscription newPlaceholder = new Subscription(id,
+                    originJsonObject.optString("title", id), new TreeSet<Category>(), null,
+                    originJsonObject.optString("htmlUrl", null), null, 0, this);
+
+            placeholder = this.placeholderSubscriptions.putIfAbsent(id, newPlaceholder);
+
+            if (placeholder == null) {
+                placeholder = newPlaceholder;
+            }
+        }
+
+        return placeholder;
+    }
+
+    /**
+     * Constructs Items from an array of item JSON objects as stored locally rather than retrieved
+     * from the api. Items from subscriptions we don't know are given placeholder Subscriptions
+     * rather than causing the subscriptions to be refreshed.
+     */
+    protected List<Item> getItemsFromStoredJson(JSONArray itemsArray)
+            throws JSONException, IOException {
+
+        List<Item> returnedItems = new ArrayList<Item>(itemsArray.length());
+        DecodingBatch decodingBatch = new DecodingBatch();
+        decodingBatch.subscriptionsRefreshed = true;
+
+        // The stored read statuses may be older than those of Items we already have.
+        decodingBatch.replaceReadStatuses = false;
+
+        for (int i = 0; i < itemsArray.length(); i++) {
+            returnedItems.add(
+                    this.getItemFromJson(itemsArray.getJSONObject(i), null, decodingBatch));
+        }
+
+        // Summaries are only found on disk through the disk cache.
+        this.writeToDiskCache(returnedItems, itemsArray);
+
+        return this.cacheDecodedItems(returnedItems);
+    }
+
+    /**
+     * Caches the given newly decoded Items, returning the cached copy of each. Where a copy no
+     * older than the decoded one was already cached, it is kept so that the Item isn't duplicated.
+     * As read statuses are held apart from Items, the kept copy has the decoded read status.
+     */
+    private List<Item> cacheDecodedItems(List<Item> decodedItems) {
+        List<Item> cachedItems = new ArrayList<Item>(decodedItems.size());
+
+        for (Item decodedItem : decodedItems) {
+            cachedItems.add(this.itemCache.put(decodedItem));
+        }
+
+        return cachedItems;
+    }
+
+    /**
+     * Constructs a JSON object for an Item in the form it is retrieved from the api, such that
+     * {@link #getItemFromJson} would construct an identical Item from it, but without its summary
+     * or read status. The summary is left to the disk cache, and the read status can be added
+     * with {@link #putReadStatus}.
+     */
+    protected JSONObject getJsonFromItem(Item item) throws JSONException {
+        JSONObject itemJsonObject = new JSONObject();
+
+        itemJsonObject.put("id", ITEM_ID_PREFIX + item.getId());
+        itemJsonObject.put("title", item.getTitle());
+        itemJsonObject.put("canonical", new JSONArray().put(
+                new JSONObject().put("href", item.getCanonicalLink())));
+        itemJsonObject.put("alternate", new JSONArray().put(
+                new JSONObject().put("href", item.getAlternateLink())));
+
+        itemJsonObject.put("published", Long.toString(item.getPublishedTimestamp().getTime()));
+        itemJsonObject.put("updated", Long.toString(item.getUpdatedTimestamp().getTime()));
+        itemJsonObject.put("crawlTimeMsec", Long.toString(item.getCrawlTimestamp().getTime()));
+
+        itemJsonObject.put("author", item.getAuthor());
+
+        JSONArray categoriesArray = new JSONArray();
+        for (Category currentCategory : item.getCategories()) {
+            categoriesArray.put(currentCategory.getFeedAddress());
+        }
+        itemJsonObject.put("categories", categoriesArray);
+
+        Subscription subscription = item.getParentSubscription();
+
+        itemJsonObject.put("origin", new JSONObject()
+                .put("streamId", subscription.getFeedAddress())
+                .put("title", subscription.getTitle())
+                .put("htmlUrl", subscription.getHtmlUrl()));
+
+        return itemJsonObject;
+    }
+
+    /**
+     * Adds the given read status to a JSON object constructed by {@link #getJsonFromItem}.
+     */
+    protected void putReadStatus(JSONObject itemJsonObject, ReadStatus readStatus)
+            throws JSONException {
+        if (readStatus == ReadStatus.READ) {
+            itemJsonObject.getJSONArray("categories").put(READ_ITEMS_STREAM);
+        }
+    }
+
+    /**
+     * State shared by the decoding of a single response containing items.
+     */
+    private static class DecodingBatch {
+        private boolean subscriptionsRefreshed = false;
+
+        // Whether the decoded read statuses replace those we already have.
+        private boolean replaceReadStatuses = true;
+    }
+
+    /**
+     * Retrieves the item ids for the given parameters. These ids can then be used to construct
+     * corresponding Item objects.
+     */
+    private ListWithContinuation<String> getItemIdsFromApi(Feed feed, boolean onlyUnread,
+                                                           int numItemsLimit, Date olderThan,
+                                                           Date newerThan,
+                                                           Continuation continuation)
+            throws IOException, JSONException {
+
+        JSONObject itemsResponse = this.requestItemIds(feed, onlyUnread, numItemsLimit,
+                olderThan, newerThan, continuation);
+
+        JSONArray itemsResponseArray = itemsResponse.getJSONArray("itemRefs");
+
+        List<String> returnedIds = new ArrayList<String>(itemsResponseArray.length());
+
+        for (int i = 0; i < itemsResponseArray.length(); i++) {
+            returnedIds.add(itemsResponseArray.getJSONObject(i).getString("id"));
+        }
+
+        return new ListWithContinuation<String>(returnedIds,
+                this.extractContinuation(itemsResponse, feed));
+    }
+
+    /**
+     * Performs the request for the item ids for the given parameters, returning the response
+     * without parsing its list of item references.
+     */
+    private JSONObject requestItemIds(Feed feed, boolean onlyUnread, int numItemsLimit,
+                                      Date olderThan, Date newerThan,
+                                      Continuation continuation)
+            throws IOException, JSONException {
+        final String BASE_ITEMS_URL = this.parentAccount.getReaderService().getBaseUrl() +
+                "/reader/api/0/stream/items/ids?output=json";
+
+        String itemListUrl = BASE_ITEMS_URL
+                + "&s=" + feed.getEncodedFeedAddress()
+                + this.getStreamParams(onlyUnread, numItemsLimit, olderThan, newerThan,
+                continuation);
+
+        ReaderServiceRequestHelper requestHelper = new ReaderServiceRequestHelper(
+                this.parentAccount.getAuthHelper());
+
+        return new JSONObject(requestHelper.performGetRequest(itemListUrl));
+    }
+
+    /**
+     * Retrieves a page of items for the given parameters in full from the stream contents
+     * endpoint, in a single request. This avoids the separate request for item ids, at the cost of
+     * retrieving the content of items that may already be cached. If readStatus is null, the read
+     * status of each item is taken from its categories.
+     */
+    private ListWithContinuation<Item> getItemsFromStreamContents(Feed feed,
+                                                                  ReadStatus readStatus,
+                                                                  int numItemsLimit,
+                                                                  Date olderThan,
+                                                                  Date newerThan,
+                                                                  Continuation continuation)
+            throws IOException, JSONException {
+
+        String streamContentsUrl = this.parentAccount.getReaderService().getBaseUrl()
+                + "/reader/api/0/stream/contents/" + feed.getEncodedFeedAddress()
+                + "?output=json"
+                + this.getStreamParams(readStatus == ReadStatus.UNREAD, numItemsLimit,
+                olderThan, newerThan, continuation);
+
+        ReaderServiceRequestHelper requestHelper = new ReaderServiceRequestHelper(
+                this.parentAccount.getAuthHelper());
+
+        long startTime = System.currentTimeMillis();
+
+        JSONObject streamContentsResponse
+                = new JSONObject(requestHelper.performGetRequest(streamContentsUrl));
+
+        List<Item> decodedItems = this.getItemsFromJsonArray(
+                streamContentsResponse.getJSONArray("items"), readStatus);
+
+        this.apiRetrievalLatencies.record(System.currentTimeMillis() - startTime);
+        this.apiRetrievedItemCount.addAndGet(decodedItems.size());
+
+        // Although we didn't use the cache here, we still keep track of how many of these items
+        // could have been retrieved from it, so that we switch to retrieving ids once enough are
+        // cached. Those in memory are counted as hits in the cache statistics, and the rest as
+        // misses, as if they had been looked up.
+        int numCachedItems = 0;
+        int numItemsInMemory = 0;
+        for (Item currentItem : decodedItems) {
+            if (this.itemCache.get(currentItem.getIndex()) != null) {
+                numItemsInMemory++;
+                numCachedItems++;
+            } else if (this.isOnDisk(currentItem)) {
+                numCachedItems++;
+            }
+        }
+        this.cacheHitRatio.record(numCachedItems, decodedItems.size());
+        this.itemCache.recordLookups(numItemsInMemory, decodedItems.size() - numItemsInMemory);
+
+        return new ListWithContinuation<Item>(this.cacheDecodedItems(decodedItems),
+                this.extractContinuation(streamContentsResponse, feed));
+    }
+
+    /**
+     * Returns the query parameters common to requests for a stream of items, each preceded by an
+     * ampersand.
+     * <p/>
+     * Note that in the api, "nt" excludes items newer than the given time and "ot" excludes items
+     * older than it, and that both are given in seconds.
+     */
+    private String getStreamParams(boolean onlyUnread, int numItemsLimit, Date olderThan,
+                                   Date newerThan, Continuation continuation) {
+        return (onlyUnread ? "&xt=" + READ_ITEMS_STREAM : "")
+                + "&n=" + String.valueOf(numItemsLimit)
+                + "&r=d"
+                + (olderThan != null ? "&nt=" + Long.toString(olderThan.getTime() / 1000) : "")
+                + (newerThan != null ? "&ot=" + Long.toString(newerThan.getTime() / 1000) : "")
+                + (continuation != null ? "&c=" + Long.toString(continuation.getCode()) : "");
+    }
+
+    /**
+     * Extracts the Continuation from a response from the api, returning null if the response
+     * doesn't have one.
+     */
+    private Continuation extractContinuation(JSONObject response, Feed feed)
+            throws JSONException {
+        if (response.has("continuation")) {
+            return new Continuation(response.getLong("continuation"), feed);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Constructs a list of Item objects for the given list of ids from the api. The ids are split
+     * into batches no larger than the ReaderService's item contents batch size, so as to keep the
+     * request URLs to a reasonable length. The first batch is retrieved on the calling thread and
+     * any others in parallel on the batch executor. Items are not necessarily returned in the
+     * order of the given ids.
+     */
+    private List<Item> getItemsFromApi(List<String> ids, final ReadStatus readStatus)
+            throws IOException {
+
+        if (ids == null || ids.isEmpty()) {
+            // Return empty list of items
+            return new ArrayList<Item>();
+        }
+
+        ReaderService readerService = this.parentAccount.getReaderService();
+
+        // Ids sent in a POST body aren't subject to any limit on the length of the URL, so there
+        // is no need to split them into batches.
+        int batchSize = readerService.getItemContentsTransport()
+                == ReaderService.ItemContentsTransport.POST
+                ? ids.size() : readerService.getItemContentsBatchSize();
+
+        if (ids.size() <= batchSize) {
+            return this.getItemBatchFromApi(ids, readStatus);
+        }
+
+        List<Future<List<Item>>> laterBatches = new ArrayList<Future<List<Item>>>();
+
+        for (int batchStart = batchSize; batchStart < ids.size(); batchStart += batchSize) {
+            final List<String> batch = new ArrayList<String>(
+                    ids.subList(batchStart, Math.min(batchStart + batchSize, ids.size())));
+
+            laterBatches.add(this.batchExecutor.submit(new Callable<List<Item>>() {
+                @Override
+                public List<Item> call() throws IOException {
+                    return getItemBatchFromApi(batch, readStatus);
+                }
+            }));
+        }
+
+        List<Item> returnedItems = new ArrayList<Item>(ids.size());
+        boolean retrievedAllBatches = false;
+
+        try {
+            returnedItems.addAll(this.getItemBatchFromApi(ids.subList(0, batchSize), readStatus));
+
+            for (Future<List<Item>> currentBatch : laterBatches) {
+                returnedItems.addAll(ConcurrencyUtils.getResult(currentBatch));
+            }
+
+            retrievedAllBatches = true;
+        } finally {
+            if (!retrievedAllBatches) {
+                ConcurrencyUtils.cancelAll(laterBatches);
+            }
+        }
+
+        return returnedItems;
+    }
+
+    /**
+     * Constructs a list of Item objects for the given list of ids from the api, using a single
+     * request. The ids are sent either in the URL of a GET request or the body of a POST request,
+     * according to the ReaderService's item contents transport.
+     */
+    private List<Item> getItemBatchFromApi(List<String> ids, ReadStatus readStatus)
+            throws IOException {
+
+        final String ITEMS_BASE_URL = this.parentAccount.getReaderService().getBaseUrl() +
+                "/reader/api/0/stream/items/contents?output=json";
+        final String ITEM_ID_PARAM = "i";
+
+        ReaderServiceRequestHelper requestHelper = new ReaderServiceRequestHelper(
+                this.parentAccount.getAuthHelper());
+
+        String response;
+
+        if (this.parentAccount.getReaderService().getItemContentsTransport()
+                == ReaderService.ItemContentsTransport.POST) {
+
+            List<ParamValuePair> idPairs = new ArrayList<ParamValuePair>(ids.size());
+
+            for (String currentId : ids) {
+                idPairs.add(new ParamValuePair(ITEM_ID_PARAM, currentId));
+            }
+
+            response = requestHelper.performPostRequest(ITEMS_BASE_URL, idPairs);
+
+        } else {
+
+            StringBuilder itemsUrl = new StringBuilder(ITEMS_BASE_URL);
+
+            for (String currentId : ids) {
+                itemsUrl.append("&").append(ITEM_ID_PARAM).append("=").append(currentId);
+            }
+
+            response = requestHelper.performGetRequest(itemsUrl.toString());
+        }
+
+        JSONObject itemsResponse;
+
+        try {
+
+            itemsResponse = new JSONObject(response);
+
+            return this.getItemsFromJsonArray(itemsResponse.getJSONArray("items"), readStatus);
+
+        } catch (JSONException e) {
+            throw new ApiParseException(e);
+        }
+
+    }
+
+    /**
+     * Constructs Item objects from an array of item JSON objects retrieved from the api, and
+     * writes them to the disk cache.
+     */
+    private List<Item> getItemsFromJsonArray(JSONArray itemsArray, ReadStatus readStatus)
+            throws JSONException, IOException {
+
+        List<Item> returnedItems = new ArrayList<Item>(itemsArray.length());
+        DecodingBatch decodingBatch = new DecodingBatch();
+
+        for (int i = 0; i < itemsArray.length(); i++) {
+            returnedItems.add(
+                    this.getItemFromJson(itemsArray.getJSONObject(i), readStatus,
+                            decodingBatch));
+        }
+
+        this.writeToDiskCache(returnedItems, itemsArray);
+
+        return returnedItems;
+    }
+
+    /**
+     * Keeps Items in the given directory once they are evicted from memory, and between sessions,
+     * so that they can be retrieved without the api.
+     */
+    public void useItemDiskCache(File directory) {
+        this.itemDiskCache = new ItemDiskCache(directory);
+    }
+
+    /**
+     * Returns true if the given Item is held in the disk cache.
+     */
+    private boolean isOnDisk(Item item) {
+        ItemDiskCache diskCache = this.itemDiskCache;
+
+        return diskCache != null && diskCache.contains(item.getId());
+    }
+
+    /**
+     * Constructs those of the Items with the given ids that are held in the disk cache. Their
+     * read statuses are as they were when they were written, so may need to be updated.
+     */
+    private List<Item> getItemsFromDiskCache(List<String> ids) throws IOException {
+        ItemDiskCache diskCache = this.itemDiskCache;
+
+        if (diskCache == null || ids.isEmpty()) {
+            return new ArrayList<Item>();
+        }
+
+        JSONArray itemsArray = new JSONArray();
+
+        try {
+            for (String currentId : ids) {
+                String itemJson = diskCache.get(currentId);
+
+                if (itemJson != null) {
+                    itemsArray.put(new JSONObject(itemJson));
+                }
+            }
+
+            return this.getItemsFromStoredJson(itemsArray);
+        } catch (JSONException e) {
+            // The Items are retrieved from the api instead.
+            return new ArrayList<Item>();
+        }
+    }
+
+    /**
+     * Writes the given Items, decoded from the given array of item JSON objects, to the disk cache
+     * in the background, if there is one. Items for which the disk cache already has a copy
+     * updated no earlier are skipped, as are those without a summary.
+     */
+    private void writeToDiskCache(final List<Item> items, final JSONArray itemsArray) {
+        final ItemDiskCache diskCache = this.itemDiskCache;
+
+        if (diskCache == null || items.isEmpty()) {
+            return;
+        }
+
+        this.diskCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < items.size(); i++) {
+                        JSONObject itemJsonObject = itemsArray.getJSONObject(i);
+
+                        if (itemJsonObject.has("summary")) {
+                            diskCache.put(items.get(i).getId(),
+                                    items.get(i).getUpdatedTimestamp().getTime(),
+                                    itemJsonObject.toString());
+                        }
+                    }
+                } catch (JSONException e) {
+                    // Items are only written to disk to avoid retrieving them again, so we can do
+                    // without them.
+                } catch (IOException e) {
+                    // As above.
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the summary of the given Item from the disk cache, or otherwise by retrieving the Item
+     * again from the api.
+     */
+    private String loadSummary(Item item) throws IOException {
+        ItemDiskCache diskCache = this.itemDiskCache;
+
+        if (diskCache != null) {
+            String summary = this.getSummaryFromDiskCache(diskCache, item.getId());
+
+            if (summary != null) {
+                this.summaries.put(item.getIndex(), summary);
+                return summary;
+            }
+        }
+
+        // The summary isn't held in the Item cache, but retrieving it again is counted as a miss
+        // so that the statistics reflect every retrieval from the api.
+        this.itemCache.recordLookups(0, 1);
+
+        long startTime = System.currentTimeMillis();
+
+        List<Item> retrievedItems
+                = this.getItemsFromApi(Collections.singletonList(item.getId()));
+
+        this.apiRetrievalLatencies.record(System.currentTimeMillis() - startTime);
+        this.apiRetrievedItemCount.addAndGet(1);
+
+        // The api's read status doesn't yet reflect any change we are yet to send.
+        this.applyPendingReadStatuses(retrievedItems);
+        this.cacheDecodedItems(retrievedItems);
+
+        // Decoding the Item put its summary in memory. It is only missing if the Item no longer
+        // exists, or the summary was evicted straight away.
+        String summary = this.summaries.getIfLoaded(item.getIndex());
+
+        return summary != null ? summary : "";
+    }
+
+    private String getSummaryFromDiskCache(ItemDiskCache diskCache, String id) {
+        String itemJson = diskCache.get(id);
+
+        if (itemJson == null) {
+            return null;
+        }
+
+        try {
+            JSONObject summaryJsonObject = new JSONObject(itemJson).optJSONObject("summary");
+            return summaryJsonObject != null ? summaryJsonObject.getString("content") : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private List<Item> getItemsFromApi(List<String> ids) throws IOException {
+        return this.getItemsFromApi(ids, null);
+    }
+
+    public ReadingList getReadingList(String title) {
+        this.readingList.setTitle(title);
+        return this.readingList;
+    }
+
+    protected ReadingList getReadingList() {
+        return this.readingList;
+    }
+
+    /**
+     * Retrieves the unread counts of all Feeds from the api.
+     */
+    public void refreshUnreadCounts() throws IOException {
+        this.loadUnreadCounts();
+    }
+
+    /**
+     * Retrieves the unread counts from the api and applies them to our Feeds.
+     */
+    private void loadUnreadCounts() throws IOException {
+        try {
+            this.applyUnreadCountsJson(this.requestUnreadCountsJson());
+        } catch (JSONException e) {
+            throw new ApiParseException(e);
+        }
+    }
+
+    /**
+     * Synchronises the subscriptions and categories with the api.
+     */
+    public void syncFeeds() throws IOException {
+        this.refreshSubscriptions();
+        this.refreshCategories();
+    }
+
+    /**
+     * Synchronises the unread counts with the api.
+     */
+    public void syncUnreadCounts() throws IOException {
+        this.loadUnreadCounts();
+    }
+
+    /**
+     * Retrieves the array of unread count JSON objects from the api.
+     */
+    protected JSONArray requestUnreadCountsJson() throws IOException, JSONException {
+        return this.unreadCounts.request();
+    }
+
+    /**
+     * Sets the unread counts of our Feeds from the given array of unread count JSON objects.
+     */
+    protected void applyUnreadCountsJson(JSONArray countsArray) throws JSONException {
+        this.unreadCounts.apply(countsArray);
+    }
+
+    /**
+     * Returns the cached Item with the given id, or null if it isn't cached.
+     */
+    protected Item getCachedItem(String id) {
+        int index = this.itemIds.find(id);
+
+        if (index == ItemIds.NO_INDEX) {
+            return null;
+        }
+
+        Item cachedItem = this.itemCache.get(index);
+
+        // The index may have been reused for another Item since it was found.
+        return cachedItem != null && cachedItem.getId().equals(id) ? cachedItem : null;
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by cached Items.
+     */
+    public void setItemCacheBudget(long maxBytes) {
+        this.itemCache.setMaxWeight(maxBytes);
+    }
+
+    /**
+     * Sets the maximum estimated memory in bytes used by the summaries of Items.
+     */
+    public void setSummaryCacheBudget(long maxBytes) {
+        this.summaries.setMaxWeight(maxBytes);
+    }
+
+    public ItemCacheStats getItemCacheStats() {
+        return new ItemCacheStats(this.itemCache, this.diskHitCount.get(),
+                this.apiRetrievedItemCount.get(), this.apiRetrievalLatencies);
+    }
+
+    /**
+     * Sets the time in milliseconds after which cached Items are retrieved again.
+     */
+    public void setItemCacheTimeToLive(long timeToLiveMillis) {
+        this.itemCache.setTimeToLive(timeToLiveMillis);
+    }
+
+    /**
+     * Returns the subscriptions we currently have, without retrieving them from the api.
+     */
+    protected SortedSet<Subscription> getKnownSubscriptions() {
+        return this.subscriptionsSnapshot;
+    }
+
+    /**
+     * Returns the categories we currently have, without retrieving them from the api.
+     */
+    protected SortedSet<Category> getKnownCategories() {
+        return this.categoriesSnapshot;
+    }
+
+    /**
+     * Returns every Feed belonging to this model that has been retrieved from the api.
+     */
+    protected List<Feed> getKnownFeeds() {
+        Map<String, Subscription> currentSubscriptions = this.subscriptions;
+        Map<String, Category> currentCategories = this.categories;
+
+        List<Feed> knownFeeds = new ArrayList<Feed>(
+                currentSubscriptions.size() + currentCategories.size() + 1);
+
+        knownFeeds.addAll(currentSubscriptions.values());
+        knownFeeds.addAll(currentCategories.values());
+        knownFeeds.add(this.readingList);
+
+        return knownFeeds;
+    }
+
+    /**
+     * Returns the Feed belonging to this model with the given stream id, or null if we don't have
+     * one.
+     */
+    protected Feed getKnownFeed(String streamId) {
+        if (streamId.equals(this.readingList.getFeedAddress())) {
+            return this.readingList;
+        }
+
+        Matcher subscriptionMatcher = SUBSCRIPTION_ID_PATTERN.matcher(streamId);
+
+        if (subscriptionMatcher.find()) {
+            return this.subscriptions.get(subscriptionMatcher.group(1));
+        } else {
+            return this.categories.get(streamId);
+        }
+    }
+}
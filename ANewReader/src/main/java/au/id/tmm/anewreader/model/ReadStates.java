@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent table of the read statuses of Items, held apart from the Items themselves so that
+ * Items can be immutable and shared between Feeds and threads. Every copy of an Item has the same
+ * read status, and changing it doesn't lock or touch any Item.
+ * <p/>
+ * The read status of each Item is found by the index of its id, as interned by {@link ItemIds}. It
+ * is packed into two bits of an array of ints, allocated in chunks as indexes are handed out, and
+ * is read and changed with atomic operations on its int. The status at an index is cleared when
+ * the index is released, before it is reused for another Item.
+ */
+class ReadStates {
+
+    private static final int BITS_PER_STATUS = 2;
+    private static final int STATUSES_PER_WORD = Integer.SIZE / BITS_PER_STATUS;
+    private static final int STATUS_MASK = (1 << BITS_PER_STATUS) - 1;
+
+    private static final int WORDS_PER_CHUNK = 256;
+    private static final int STATUSES_PER_CHUNK = WORDS_PER_CHUNK * STATUSES_PER_WORD;
+
+    // Enough for every Item in memory, at a cost of 16KB of empty chunk references.
+    private static final int MAX_CHUNKS = ItemIds.MAX_ITEMS / STATUSES_PER_CHUNK;
+
+    private static final int UNKNOWN = 0;
+    private static final int UNREAD = 1;
+    private static final int READ = 2;
+
+    private AtomicReferenceArray<AtomicIntegerArray> chunks
+            = new AtomicReferenceArray<AtomicIntegerArray>(MAX_CHUNKS);
+
+    /**
+     * Returns the read status of the given Item, or null if it isn't known.
+     */
+    protected ReadStatus get(Item item) {
+        int index = item.getIndex();
+        AtomicIntegerArray chunk = this.chunks.get(index / STATUSES_PER_CHUNK);
+
+        if (chunk == null) {
+            return null;
+        }
+
+        int word = chunk.get(getWordIndex(index));
+
+        return toReadStatus((word >>> getShift(index)) & STATUS_MASK);
+    }
+
+    /**
+     * Sets the read status of the given Item, returning the previous read status.
+     */
+    protected ReadStatus getAndSet(Item item, ReadStatus readStatus) {
+        return this.update(item.getIndex(), readStatus, false);
+    }
+
+    protected void set(Item item, ReadStatus readStatus) {
+        this.update(item.getIndex(), readStatus, false);
+    }
+
+    /**
+     * Forgets the read status at the given index, which has been released.
+     */
+    protected void clear(int index) {
+        if (this.chunks.get(index / STATUSES_PER_CHUNK) != null) {
+            this.update(index, null, false);
+        }
+    }
+
+    /**
+     * Sets the read status of the given Item only if it isn't known, returning true if it was
+     * set.
+     */
+    protected boolean setIfUnknown(Item item, ReadStatus readStatus) {
+        return this.update(item.getIndex(), readStatus, true) == null;
+    }
+
+    private ReadStatus update(int index, ReadStatus readStatus, boolean onlyIfUnknown) {
+        AtomicIntegerArray chunk = this.getOrCreateChunk(index / STATUSES_PER_CHUNK);
+
+        int wordIndex = getWordIndex(index);
+        int shift = getShift(index);
+        int newStatus = fromReadStatus(readStatus);
+
+        while (true) {
+            int word = chunk.get(wordIndex);
+            int previousStatus = (word >>> shift) & STATUS_MASK;
+
+            if (previousStatus == newStatus
+                    || (onlyIfUnknown && previousStatus != UNKNOWN)) {
+                return toReadStatus(previousStatus);
+            }
+
+            int newWord = (word & ~(STATUS_MASK << shift)) | (newStatus << shift);
+
+            if (chunk.compareAndSet(wordIndex, word, newWord)) {
+                return toReadStatus(previousStatus);
+            }
+        }
+    }
+
+    private AtomicIntegerArray getOrCreateChunk(int chunkIndex) {
+        AtomicIntegerArray chunk = this.chunks.get(chunkIndex);
+
+        if (chunk == null) {
+            this.chunks.compareAndSet(chunkIndex, null, new AtomicIntegerArray(WORDS_PER_CHUNK));
+            chunk = this.chunks.get(chunkIndex);
+        }
+
+        return chunk;
+    }
+
+    private static int getWordIndex(int index) {
+        return (index % STATUSES_PER_CHUNK) / STATUSES_PER_WORD;
+    }
+
+    private static int getShift(int index) {
+        return (index % STATUSES_PER_WORD) * BITS_PER_STATUS;
+    }
+
+    private static int fromReadStatus(ReadStatus readStatus) {
+        if (readStatus == null) {
+            return UNKNOWN;
+        } else {
+            return readStatus == ReadStatus.READ ? READ : UNREAD;
+        }
+    }
+
+    private static ReadStatus toReadStatus(int status) {
+        switch (status) {
+            case UNREAD:
+                return ReadStatus.UNREAD;
+            case READ:
+                return ReadStatus.READ;
+            default:
+                return null;
+        }
+    }
+
+}
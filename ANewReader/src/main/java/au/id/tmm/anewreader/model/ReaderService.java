@@ -23,9 +23,14 @@ package au.id.tmm.anewreader.model;
  */
 public class ReaderService {
 
+    private static final int DEFAULT_ITEM_CONTENTS_BATCH_SIZE = 50;
+
     private String baseUrl;
     private String title;
 
+    private int itemContentsBatchSize = DEFAULT_ITEM_CONTENTS_BATCH_SIZE;
+    private ItemContentsTransport itemContentsTransport = ItemContentsTransport.GET;
+
     public ReaderService(String baseUrl, String title) {
         this.baseUrl = baseUrl;
         this.title = title;
@@ -42,4 +47,44 @@ public class ReaderService {
     public String getTitle() {
         return title;
     }
+
+    /**
+     * Returns the maximum number of Items whose content is requested from this service in a single
+     * GET request. Larger requests are split into batches of this size, which are performed in
+     * parallel. This has no effect when Item content is requested using POST requests, which are
+     * not subject to a limit on the length of the URL.
+     */
+    public int getItemContentsBatchSize() {
+        return itemContentsBatchSize;
+    }
+
+    public void setItemContentsBatchSize(int itemContentsBatchSize) {
+        if (itemContentsBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was "
+                    + itemContentsBatchSize);
+        }
+        this.itemContentsBatchSize = itemContentsBatchSize;
+    }
+
+    /**
+     * Returns the means by which the ids of the Items whose content is requested are sent to this
+     * service.
+     */
+    public ItemContentsTransport getItemContentsTransport() {
+        return itemContentsTransport;
+    }
+
+    public void setItemContentsTransport(ItemContentsTransport itemContentsTransport) {
+        this.itemContentsTransport = itemContentsTransport;
+    }
+
+    /**
+     * Enumerates the ways in which item ids can be sent when requesting Item content. GET places
+     * the ids in the query string of the URL, and is accepted by all services. POST sends the ids
+     * in a form-encoded request body, allowing any number of ids in a single request, but is not
+     * supported by all services.
+     */
+    public enum ItemContentsTransport {
+        GET, POST
+    }
 }
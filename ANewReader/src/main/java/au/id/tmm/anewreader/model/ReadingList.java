@@ -48,4 +48,9 @@ public class ReadingList extends Feed {
     String getFeedAddress() {
         return this.feedAddress;
     }
+
+    @Override
+    boolean containsSubscription(Subscription subscription) {
+        return true;
+    }
 }
@@ -29,12 +29,13 @@ public class Subscription extends Feed implements Comparable<Subscription>, Seri
 
     private static final String FEED_ADDRESS_PREFIX = "feed/";
 
-    private String title;
+    // The details other than the id may be updated from the api while other threads read them.
+    private volatile String title;
     private String id;
-    private Set<Category> categories;
-    private String url;
-    private String htmlUrl;
-    private String iconUrl;
+    private volatile Set<Category> categories;
+    private volatile String url;
+    private volatile String htmlUrl;
+    private volatile String iconUrl;
 
     public Subscription(String id, String title, Set<Category> categories,
                         String url, String htmlUrl, String iconUrl, int unreadCount,
@@ -61,6 +62,11 @@ public class Subscription extends Feed implements Comparable<Subscription>, Seri
         return FEED_ADDRESS_PREFIX + this.getId();
     }
 
+    @Override
+    boolean containsSubscription(Subscription subscription) {
+        return this.equals(subscription);
+    }
+
     public void setTitle(String newTitle) {
         throw new UnsupportedOperationException();
     }
@@ -80,6 +86,38 @@ public class Subscription extends Feed implements Comparable<Subscription>, Seri
     public String getIconUrl() {
         return this.iconUrl;
     }
+
+    /**
+     * Updates the details of this subscription to those retrieved from the api. Returns true if
+     * any of them differ from the current details.
+     * <p/>
+     * Sorted sets of subscriptions are ordered by title, so a changed subscription must be sorted
+     * again by the Model, which builds its sets as per {@link #compareTo}, but by the titles the
+     * subscriptions had when each set was built.
+     */
+    boolean update(String title, Set<Category> categories, String url, String htmlUrl,
+                   String iconUrl) {
+        boolean changed = !areEqual(this.title, title)
+                || !areEqual(this.categories, categories)
+                || !areEqual(this.url, url)
+                || !areEqual(this.htmlUrl, htmlUrl)
+                || !areEqual(this.iconUrl, iconUrl);
+
+        if (changed) {
+            this.title = title;
+            this.categories = categories;
+            this.url = url;
+            this.htmlUrl = htmlUrl;
+            this.iconUrl = iconUrl;
+        }
+
+        return changed;
+    }
+
+    private static boolean areEqual(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     @Override
     public int compareTo(Subscription otherSubscription) {
 
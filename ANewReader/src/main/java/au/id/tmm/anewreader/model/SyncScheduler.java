@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+
+/**
+ * Runs periodic synchronisations of an Account's Feeds, unread counts and new Items in the
+ * background, so that the network is mostly kept off the interactive path.
+ * <p/>
+ * New Items are synchronised separately for each Feed added to the scheduler, at an interval
+ * adapted to how often Items are posted to that Feed. Each synchronisation backs off after an
+ * error, and none are started while the scheduler is suspended, eg while the app is loading in
+ * the foreground. Synchronisations that fall due while suspended are run once it is resumed.
+ */
+public class SyncScheduler {
+
+    private static final long FEEDS_SYNC_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long UNREAD_COUNTS_SYNC_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final long MIN_ITEMS_SYNC_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_SYNC_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private static final long INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int ITEMS_PER_SYNC = 20;
+
+    // The interval for a Feed is chosen so that we expect this many new Items at each sync.
+    private static final double TARGET_NEW_ITEMS_PER_SYNC = ITEMS_PER_SYNC / 2.0;
+
+    // The weight given to the posting rate observed at the latest sync when estimating the
+    // posting rate of a Feed.
+    private static final double LATEST_RATE_WEIGHT = 0.3;
+
+    private Model model;
+
+    private ScheduledExecutorService executor
+            = ConcurrencyUtils.newSingleThreadScheduledExecutor("sync");
+
+    private volatile boolean running = false;
+
+    // Guarded by this, as are the SyncTasks waiting to be resumed.
+    private boolean suspended = false;
+    private Set<SyncTask> suspendedSyncs = new HashSet<SyncTask>();
+
+    private SyncTask feedsSync = new FeedsSync();
+    private SyncTask unreadCountsSync = new UnreadCountsSync();
+    private Map<Feed, ItemsSync> itemsSyncs = new ConcurrentHashMap<Feed, ItemsSync>();
+
+    SyncScheduler(Model model) {
+        this.model = model;
+    }
+
+    /**
+     * Starts synchronising in the background.
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+
+        this.running = true;
+
+        this.feedsSync.schedule(INITIAL_DELAY_MILLIS);
+        this.unreadCountsSync.schedule(INITIAL_DELAY_MILLIS);
+
+        for (ItemsSync currentSync : this.itemsSyncs.values()) {
+            currentSync.schedule(INITIAL_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Stops synchronising. Any synchronisation in progress is allowed to finish.
+     */
+    public synchronized void stop() {
+        this.running = false;
+        this.suspendedSyncs.clear();
+
+        this.feedsSync.cancel();
+        this.unreadCountsSync.cancel();
+
+        for (ItemsSync currentSync : this.itemsSyncs.values()) {
+            currentSync.cancel();
+        }
+    }
+
+    /**
+     * Adds a Feed whose new Items are to be synchronised.
+     */
+    public synchronized void addFeed(Feed feed) {
+        if (this.itemsSyncs.containsKey(feed)) {
+            return;
+        }
+
+        ItemsSync itemsSync = new ItemsSync(feed);
+        this.itemsSyncs.put(feed, itemsSync);
+
+        if (this.running) {
+            itemsSync.schedule(INITIAL_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Removes a Feed added with {@link #addFeed}, so that its new Items are no longer
+     * synchronised.
+     */
+    public synchronized void removeFeed(Feed feed) {
+        ItemsSync itemsSync = this.itemsSyncs.remove(feed);
+
+        if (itemsSync != null) {
+            itemsSync.cancel();
+        }
+    }
+
+    /**
+     * Returns the current interval between synchronisations of the new Items of the given Feed,
+     * or -1 if the Feed hasn't been added.
+     */
+    public long getItemsSyncInterval(Feed feed) {
+        ItemsSync itemsSync = this.itemsSyncs.get(feed);
+        return itemsSync != null ? itemsSync.interval : -1;
+    }
+
+    /**
+     * Suspends synchronisation until {@link #resume} is called, so that it doesn't compete with
+     * loading in the foreground. Any synchronisation in progress is allowed to finish.
+     */
+    public synchronized void suspend() {
+        this.suspended = true;
+    }
+
+    /**
+     * Resumes synchronisation, immediately running any synchronisations that fell due while it
+     * was suspended.
+     */
+    public synchronized void resume() {
+        this.suspended = false;
+
+        for (SyncTask currentSync : this.suspendedSyncs) {
+            currentSync.schedule(0);
+        }
+
+        this.suspendedSyncs.clear();
+    }
+
+    /**
+     * A periodic synchronisation, rescheduled after each run. After an error it is retried after a
+     * delay which doubles with each consecutive error.
+     */
+    private abstract class SyncTask implements Runnable {
+
+        private ScheduledFuture<?> scheduledRun;
+        private long retryDelay = INITIAL_RETRY_DELAY_MILLIS;
+
+        /**
+         * Performs the synchronisation, returning the delay until the next one.
+         */
+        protected abstract long sync() throws IOException;
+
+        @Override
+        public void run() {
+            synchronized (SyncScheduler.this) {
+                if (!running) {
+                    return;
+                }
+
+                // Run again once resumed.
+                if (suspended) {
+                    suspendedSyncs.add(this);
+                    return;
+                }
+            }
+
+            long nextDelay;
+
+            try {
+                nextDelay = this.sync();
+                this.retryDelay = INITIAL_RETRY_DELAY_MILLIS;
+            } catch (IOException e) {
+                nextDelay = this.backOff();
+            } catch (RuntimeException e) {
+                // Also retried, as an exception escaping would end the synchronisation.
+                nextDelay = this.backOff();
+            }
+
+            this.schedule(nextDelay);
+        }
+
+        private long backOff() {
+            long delay = this.retryDelay;
+            this.retryDelay = Math.min(this.retryDelay * 2, MAX_SYNC_INTERVAL_MILLIS);
+            return delay;
+        }
+
+        protected void schedule(long delayMillis) {
+            synchronized (SyncScheduler.this) {
+                if (running) {
+                    this.scheduledRun = executor.schedule(this, delayMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        protected void cancel() {
+            synchronized (SyncScheduler.this) {
+                suspendedSyncs.remove(this);
+
+                if (this.scheduledRun != null) {
+                    this.scheduledRun.cancel(false);
+                    this.scheduledRun = null;
+                }
+            }
+        }
+    }
+
+    private class FeedsSync extends SyncTask {
+        @Override
+        protected long sync() throws IOException {
+            model.syncFeeds();
+            return FEEDS_SYNC_INTERVAL_MILLIS;
+        }
+    }
+
+    private class UnreadCountsSync extends SyncTask {
+        @Override
+        protected long sync() throws IOException {
+            model.syncUnreadCounts();
+            return UNREAD_COUNTS_SYNC_INTERVAL_MILLIS;
+        }
+    }
+
+    /**
+     * Synchronises the new Items of a Feed. The posting rate of the Feed is estimated from the
+     * number of new Items found at each sync, and the interval chosen accordingly.
+     */
+    private class ItemsSync extends SyncTask {
+
+        private Feed feed;
+
+        // The crawl timestamp of the newest Item we have, or null until the first sync.
+        private Date newestCrawlTimestamp = null;
+        private long lastSyncTime = -1;
+
+        // Estimated new Items per millisecond, or negative if we don't yet have an estimate.
+        private double postingRate = -1;
+
+        private volatile long interval = MIN_ITEMS_SYNC_INTERVAL_MILLIS;
+
+        private ItemsSync(Feed feed) {
+            this.feed = feed;
+        }
+
+        @Override
+        protected long sync() throws IOException {
+            long syncTime = System.currentTimeMillis();
+
+            if (this.newestCrawlTimestamp == null) {
+                this.newestCrawlTimestamp = this.getNewestHeldCrawlTimestamp();
+            }
+
+            ListWithContinuation<Item> newItems = model.getItems(this.feed, null, ITEMS_PER_SYNC,
+                    null, this.newestCrawlTimestamp, null);
+
+            int numNewItems = 0;
+            Date newestCrawlTimestamp = this.newestCrawlTimestamp;
+
+            for (Item currentItem : newItems.getList()) {
+                // Items crawled in the same second as the newest we had are returned again.
+                if (currentItem.getCrawlTimestamp().after(this.newestCrawlTimestamp)) {
+                    numNewItems++;
+                }
+                if (currentItem.getCrawlTimestamp().after(newestCrawlTimestamp)) {
+                    newestCrawlTimestamp = currentItem.getCrawlTimestamp();
+                }
+            }
+
+            // The first sync tells us nothing of the posting rate, as it covers all time.
+            if (this.lastSyncTime >= 0) {
+                double observedRate = (double) numNewItems / (syncTime - this.lastSyncTime);
+
+                this.postingRate = this.postingRate < 0
+                        ? observedRate
+                        : LATEST_RATE_WEIGHT * observedRate
+                        + (1 - LATEST_RATE_WEIGHT) * this.postingRate;
+
+                this.interval = this.postingRate > 0
+                        ? Math.max(MIN_ITEMS_SYNC_INTERVAL_MILLIS, Math.min(MAX_SYNC_INTERVAL_MILLIS,
+                        (long) (TARGET_NEW_ITEMS_PER_SYNC / this.postingRate)))
+                        : MAX_SYNC_INTERVAL_MILLIS;
+            }
+
+            this.newestCrawlTimestamp = newestCrawlTimestamp;
+            this.lastSyncTime = syncTime;
+
+            return this.interval;
+        }
+
+        /**
+         * Returns the crawl timestamp of the newest Item of the Feed that we already have, so that
+         * the first sync only asks for Items newer than it. Otherwise the first sync would ask for
+         * a page of Items newer than the epoch, which always has more after it, and would replace
+         * the Items the store holds for the Feed with that page. The first page is served from
+         * the store if there is one, and is otherwise retrieved and stored.
+         */
+        private Date getNewestHeldCrawlTimestamp() throws IOException {
+            Date newestCrawlTimestamp = new Date(0);
+
+            for (Item currentItem : model.getItems(this.feed, null, ITEMS_PER_SYNC, null, null,
+                    null).getList()) {
+                if (currentItem.getCrawlTimestamp().after(newestCrawlTimestamp)) {
+                    newestCrawlTimestamp = currentItem.getCrawlTimestamp();
+                }
+            }
+
+            return newestCrawlTimestamp;
+        }
+    }
+}
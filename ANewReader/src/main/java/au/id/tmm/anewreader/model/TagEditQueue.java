@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import au.id.tmm.anewreader.model.net.ReaderServiceRequestHelper;
+import au.id.tmm.anewreader.utility.ConcurrencyUtils;
+import au.id.tmm.anewreader.utility.network.AuthenticationException;
+import au.id.tmm.anewreader.utility.network.HttpException;
+import au.id.tmm.anewreader.utility.network.HttpStatusCode;
+import au.id.tmm.anewreader.utility.network.ParamValuePair;
+
+/**
+ * Write-behind queue of edits to the tags of Items, such as marking them as read. Edits are
+ * queued locally and sent to the api in the background a short time later, so that the caller
+ * never waits on the network. Edits made in the meantime are coalesced: an edit followed by its
+ * opposite cancels out, and the remaining edits are sent as a few edit-tag requests each covering
+ * many Items.
+ * <p/>
+ * Each queued edit is expected to change the state of its tag, so that an edit and its opposite
+ * leave the tag as the api already has it. Edits remain visible through {@link #getPendingEdit}
+ * until the api has acknowledged them, including while they are being sent.
+ * <p/>
+ * Edits that fail are retried after a delay which doubles with each consecutive failure, and are
+ * dropped after {@link #MAX_ATTEMPTS} attempts. Edits the api rejects outright are dropped
+ * straight away. After an authentication failure edits are kept but not retried until another
+ * edit is queued or the queue is flushed, as they can't succeed until the user logs in again.
+ */
+class TagEditQueue {
+
+    private static final long FLUSH_DELAY_MILLIS = 2000;
+    private static final long RETRY_DELAY_MILLIS = 30000;
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_ITEMS_PER_REQUEST = 100;
+
+    protected static final int MAX_ATTEMPTS = 10;
+
+    private OnlineModel model;
+
+    // For each Item and tag with an edit pending, whether the tag is to be added or removed. The
+    // edits being sent are held apart, until the api acknowledges them. Guarded by this, as are
+    // the fields below them.
+    private Map<TagEdit, Edit> pendingEdits = new LinkedHashMap<TagEdit, Edit>();
+    private Map<TagEdit, Edit> inFlightEdits = new HashMap<TagEdit, Edit>();
+    private boolean flushScheduled = false;
+    private int consecutiveFailures = 0;
+
+    // Held while edits are sent, so that successive edits to the same tag can't be reordered.
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService flushExecutor
+            = ConcurrencyUtils.newSingleThreadScheduledExecutor("tag-edit-flush");
+
+    protected TagEditQueue(OnlineModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Queues the addition of the given tag to the Item with the given id.
+     */
+    protected void addTag(String itemId, String tag) {
+        this.enqueue(new TagEdit(itemId, tag), true);
+    }
+
+    /**
+     * Queues the removal of the given tag from the Item with the given id.
+     */
+    protected void removeTag(String itemId, String tag) {
+        this.enqueue(new TagEdit(itemId, tag), false);
+    }
+
+    /**
+     * Returns true if the addition of the given tag to the given Item is pending, false if its
+     * removal is pending, and null if there is no pending edit. An edit being sent is pending
+     * until the api has acknowledged it.
+     */
+    protected synchronized Boolean getPendingEdit(String itemId, String tag) {
+        TagEdit tagEdit = new TagEdit(itemId, tag);
+
+        // A queued edit is newer than one being sent.
+        Edit edit = this.pendingEdits.get(tagEdit);
+
+        if (edit == null) {
+            edit = this.inFlightEdits.get(tagEdit);
+        }
+
+        return edit != null ? edit.add : null;
+    }
+
+    /**
+     * Discards any pending edit of the given tag of the given Item, for when the edit has been
+     * made redundant by another request to the api.
+     */
+    protected synchronized void discardEdit(String itemId, String tag) {
+        TagEdit tagEdit = new TagEdit(itemId, tag);
+
+        this.pendingEdits.remove(tagEdit);
+        this.inFlightEdits.remove(tagEdit);
+    }
+
+    /**
+     * Sends every pending edit to the api, blocking until they have been sent. If the edits can't
+     * be sent, those not yet acknowledged are queued again before the exception is thrown. Edits
+     * rejected by the api are dropped, and the HttpException rejecting them is thrown once the
+     * other edits have been sent.
+     */
+    protected void flush() throws IOException {
+        synchronized (this.flushLock) {
+
+            // The ids of the Items to be tagged or untagged, grouped by tag.
+            Map<String, List<String>> additions = new HashMap<String, List<String>>();
+            Map<String, List<String>> removals = new HashMap<String, List<String>>();
+
+            synchronized (this) {
+                this.inFlightEdits.putAll(this.pendingEdits);
+                this.pendingEdits.clear();
+
+                for (Map.Entry<TagEdit, Edit> currentEdit : this.inFlightEdits.entrySet()) {
+                    Map<String, List<String>> group = currentEdit.getValue().add
+                            ? additions
+                            : removals;
+                    List<String> itemIds = group.get(currentEdit.getKey().tag);
+
+                    if (itemIds == null) {
+                        itemIds = new ArrayList<String>();
+                        group.put(currentEdit.getKey().tag, itemIds);
+                    }
+
+                    itemIds.add(currentEdit.getKey().itemId);
+                }
+            }
+
+            HttpException rejection;
+
+            try {
+                rejection = this.sendEdits(additions, "a");
+
+                HttpException removalsRejection = this.sendEdits(removals, "r");
+                if (rejection == null) {
+                    rejection = removalsRejection;
+                }
+            } catch (IOException e) {
+                this.requeueInFlightEdits(isAuthenticationFailure(e));
+                throw e;
+            } catch (RuntimeException e) {
+                this.requeueInFlightEdits(e instanceof AuthenticationException);
+                throw e;
+            }
+
+            synchronized (this) {
+                this.consecutiveFailures = 0;
+            }
+
+            if (rejection != null) {
+                throw rejection;
+            }
+        }
+    }
+
+    /**
+     * Sends the given edits, acknowledging each batch of Item ids once it has been sent. The
+     * editParam is "a" to add tags, or "r" to remove them. Batches rejected by the api are
+     * dropped, returning the HttpException rejecting the last of them, or null if none were.
+     */
+    private HttpException sendEdits(Map<String, List<String>> itemIdsByTag, String editParam)
+            throws IOException {
+        final String EDIT_TAG_URL = this.model.getParentAccount().getReaderService().getBaseUrl()
+                + "/reader/api/0/edit-tag";
+
+        ReaderServiceRequestHelper requestHelper
+                = new ReaderServiceRequestHelper(this.model.getParentAccount().getAuthHelper());
+
+        HttpException rejection = null;
+
+        for (Map.Entry<String, List<String>> currentTag : itemIdsByTag.entrySet()) {
+            List<String> itemIds = currentTag.getValue();
+
+            while (!itemIds.isEmpty()) {
+                List<String> batch
+                        = itemIds.subList(0, Math.min(MAX_ITEMS_PER_REQUEST, itemIds.size()));
+
+                List<ParamValuePair> params = new ArrayList<ParamValuePair>(batch.size() + 1);
+                params.add(new ParamValuePair(editParam, currentTag.getKey()));
+                for (String currentId : batch) {
+                    params.add(new ParamValuePair("i", currentId));
+                }
+
+                try {
+                    requestHelper.performPostRequest(EDIT_TAG_URL, params);
+                } catch (HttpException e) {
+                    if (!isRejection(e)) {
+                        throw e;
+                    }
+
+                    // Sending these edits again would only be rejected again.
+                    rejection = e;
+                }
+
+                this.acknowledge(batch, currentTag.getKey());
+                batch.clear();
+            }
+        }
+
+        return rejection;
+    }
+
+    /**
+     * Returns true if the given failure means the api won't accept the request however often it
+     * is sent, as opposed to a failure of the network, the server or our authentication.
+     */
+    private static boolean isRejection(HttpException e) {
+        HttpStatusCode status = e.getHttpStatus();
+
+        return status != null && status.getCode() >= 400 && status.getCode() < 500
+                && status != HttpStatusCode.UNAUTHORIZED
+                && status != HttpStatusCode.FORBIDDEN
+                && status != HttpStatusCode.REQUEST_TIMEOUT;
+    }
+
+    private static boolean isAuthenticationFailure(IOException e) {
+        return e instanceof HttpException
+                && (((HttpException) e).getHttpStatus() == HttpStatusCode.UNAUTHORIZED
+                        || ((HttpException) e).getHttpStatus() == HttpStatusCode.FORBIDDEN);
+    }
+
+    private synchronized void acknowledge(List<String> itemIds, String tag) {
+        for (String currentId : itemIds) {
+            this.inFlightEdits.remove(new TagEdit(currentId, tag));
+        }
+    }
+
+    /**
+     * Queues again the edits that couldn't be sent, unless they have been attempted too often.
+     * They are retried after a delay, unless sending them failed to authenticate, in which case
+     * they wait for the next edit or flush.
+     */
+    private synchronized void requeueInFlightEdits(boolean authenticationFailed) {
+        for (Map.Entry<TagEdit, Edit> currentEdit : this.inFlightEdits.entrySet()) {
+            TagEdit tagEdit = currentEdit.getKey();
+            int attempts = currentEdit.getValue().attempts + 1;
+
+            if (attempts >= MAX_ATTEMPTS) {
+                continue;
+            }
+
+            Edit pendingEdit = this.pendingEdits.get(tagEdit);
+
+            if (pendingEdit == null) {
+                this.pendingEdits.put(tagEdit, new Edit(currentEdit.getValue().add, attempts));
+            } else if (pendingEdit.add != currentEdit.getValue().add) {
+                // The edit made since cancels out the one that failed.
+                this.pendingEdits.remove(tagEdit);
+            }
+        }
+
+        this.inFlightEdits.clear();
+
+        if (!authenticationFailed) {
+            this.consecutiveFailures++;
+            this.scheduleFlush(Math.min(MAX_RETRY_DELAY_MILLIS,
+                    RETRY_DELAY_MILLIS << Math.min(this.consecutiveFailures - 1, 16)));
+        }
+    }
+
+    /**
+     * Queues the given edit, cancelling it against any opposite edit already pending, and makes
+     * sure a flush is scheduled.
+     */
+    private synchronized void enqueue(TagEdit tagEdit, boolean add) {
+        Edit pendingEdit = this.pendingEdits.get(tagEdit);
+
+        if (pendingEdit == null) {
+            this.pendingEdits.put(tagEdit, new Edit(add, 0));
+        } else if (pendingEdit.add != add) {
+            this.pendingEdits.remove(tagEdit);
+        }
+
+        this.scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+    /**
+     * Schedules a flush after the given delay, if there are edits pending and a flush isn't
+     * already scheduled. Must be called holding the lock on this.
+     */
+    private void scheduleFlush(long delayMillis) {
+        if (!this.flushScheduled && !this.pendingEdits.isEmpty()) {
+            this.flushScheduled = true;
+            this.flushExecutor.schedule(new ScheduledFlush(), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Task flushing the queue in the background. Failed edits are queued again by flush, which
+     * schedules their retry.
+     */
+    private class ScheduledFlush implements Runnable {
+        @Override
+        public void run() {
+            synchronized (TagEditQueue.this) {
+                flushScheduled = false;
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                // The edits have been queued again, and will be retried, or were rejected.
+            } catch (AuthenticationException e) {
+                // The edits have been queued again, and are retried once the user logs in.
+            }
+        }
+    }
+
+    /**
+     * Identifies the target of an edit, ie an Item and one of its tags.
+     */
+    private static class TagEdit {
+
+        private String itemId;
+        private String tag;
+
+        private TagEdit(String itemId, String tag) {
+            this.itemId = itemId;
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TagEdit tagEdit = (TagEdit) o;
+
+            return itemId.equals(tagEdit.itemId) && tag.equals(tagEdit.tag);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * itemId.hashCode() + tag.hashCode();
+        }
+    }
+
+    /**
+     * An edit of a tag, being whether it is to be added or removed, and the number of times
+     * sending it has failed.
+     */
+    private static class Edit {
+
+        private final boolean add;
+        private final int attempts;
+
+        private Edit(boolean add, int attempts) {
+            this.add = add;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import au.id.tmm.anewreader.model.net.ReaderServiceRequestHelper;
+
+/**
+ * Maintains the unread counts of the Feeds belonging to a Model. The counts for every Feed are
+ * retrieved from the api in a single request, and are then kept up to date locally as Items change
+ * read status, so that the counts don't need to be retrieved again whenever an Item is read.
+ */
+class UnreadCounts {
+
+    // Stream ids may be returned with the user's id in place of the "-" used elsewhere.
+    private static final Pattern USER_ID_PATTERN = Pattern.compile("^user/[^/]+/");
+    private static final String CURRENT_USER_PREFIX = "user/-/";
+
+    private OnlineModel model;
+
+    // The most recent unread count for each stream id, whether or not we have a Feed for it yet.
+    private Map<String, Integer> lastKnownCounts = new ConcurrentHashMap<String, Integer>();
+
+    protected UnreadCounts(OnlineModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Retrieves the unread counts for all feeds from the api, as an array of JSON objects each
+     * holding the id of a stream and its count.
+     */
+    protected JSONArray request() throws IOException, JSONException {
+        final String UNREAD_COUNT_URL
+                = this.model.getParentAccount().getReaderService().getBaseUrl()
+                + "/reader/api/0/unread-count?output=json";
+
+        ReaderServiceRequestHelper requestHelper
+                = new ReaderServiceRequestHelper(this.model.getParentAccount().getAuthHelper());
+
+        return new JSONObject(requestHelper.performGetRequest(UNREAD_COUNT_URL))
+                .getJSONArray("unreadcounts");
+    }
+
+    /**
+     * Stores the unread counts from the given array of JSON objects as retrieved by
+     * {@link #request}, and sets the unread count of each of the Model's Feeds accordingly.
+     */
+    protected synchronized void apply(JSONArray countsArray) throws JSONException {
+        Map<String, Integer> newCounts = new HashMap<String, Integer>();
+
+        for (int i = 0; i < countsArray.length(); i++) {
+            JSONObject countJsonObject = countsArray.getJSONObject(i);
+            newCounts.put(this.normaliseStreamId(countJsonObject.getString("id")),
+                    countJsonObject.getInt("count"));
+        }
+
+        this.lastKnownCounts.clear();
+        this.lastKnownCounts.putAll(newCounts);
+
+        // Feeds without an entry have no unread items.
+        for (Feed currentFeed : this.model.getKnownFeeds()) {
+            currentFeed.setUnreadCount(this.getLastKnownCount(currentFeed.getFeedAddress()));
+        }
+    }
+
+    /**
+     * Returns the most recently retrieved unread count for the given stream id, or zero if there
+     * isn't one.
+     */
+    protected int getLastKnownCount(String streamId) {
+        Integer count = this.lastKnownCounts.get(streamId);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Adjusts the unread counts of the Feeds containing the given Item to reflect a change in its
+     * read status.
+     */
+    protected synchronized void applyReadStatusChange(Item item, ReadStatus previousReadStatus,
+                                                      ReadStatus newReadStatus) {
+        if (previousReadStatus == null || newReadStatus == null
+                || previousReadStatus == newReadStatus) {
+            return;
+        }
+
+        this.adjustSubscription(item.getParentSubscription(),
+                newReadStatus == ReadStatus.UNREAD ? 1 : -1);
+    }
+
+    /**
+     * Sets the unread counts of the given Feed and each of its Subscriptions to zero, adjusting
+     * the counts of the Feeds containing those Subscriptions accordingly.
+     */
+    protected synchronized void applyMarkAllAsRead(Feed feed) {
+        for (Feed currentFeed : this.model.getKnownFeeds()) {
+            if (currentFeed instanceof Subscription
+                    && feed.containsSubscription((Subscription) currentFeed)) {
+                this.adjustSubscription((Subscription) currentFeed,
+                        -this.getLastKnownCount(currentFeed.getFeedAddress()));
+            }
+        }
+
+        // The Feed may still have a count for Subscriptions we don't know about.
+        this.adjust(feed.getFeedAddress(), -this.getLastKnownCount(feed.getFeedAddress()));
+    }
+
+    /**
+     * Adjusts the unread count of the given Subscription, and those of its Categories and the
+     * reading list, by the given amount.
+     */
+    private void adjustSubscription(Subscription subscription, int delta) {
+        if (delta == 0) {
+            return;
+        }
+
+        this.adjust(subscription.getFeedAddress(), delta);
+
+        for (Category currentCategory : subscription.getCategories()) {
+            this.adjust(currentCategory.getFeedAddress(), delta);
+        }
+
+        this.adjust(this.model.getReadingList().getFeedAddress(), delta);
+    }
+
+    /**
+     * Adjusts the unread count for the given stream id, and that of the corresponding Feed if we
+     * have one.
+     */
+    private void adjust(String streamId, int delta) {
+        int newCount = Math.max(0, this.getLastKnownCount(streamId) + delta);
+
+        this.lastKnownCounts.put(streamId, newCount);
+
+        Feed feed = this.model.getKnownFeed(streamId);
+
+        if (feed != null) {
+            feed.setUnreadCount(newCount);
+        }
+    }
+
+    private String normaliseStreamId(String streamId) {
+        return USER_ID_PATTERN.matcher(streamId).replaceFirst(CURRENT_USER_PREFIX);
+    }
+
+}
@@ -113,10 +113,13 @@ public class ReaderServiceRequestHelper implements RequestHelper {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public String performPostRequest(String uri, Collection<ParamValuePair> pairs)
-            throws IOException, URISyntaxException {
-        return this.performPostRequest(uri, pairs);
+            throws IOException {
+        return this.performPostRequest(uri, pairs.toArray(new ParamValuePair[pairs.size()]));
     }
 
     /**
@@ -156,6 +159,16 @@ public class ReaderServiceRequestHelper implements RequestHelper {
             return IOUtils.stringFromInputSteam(inputStream,
                     this.getEncodingFromContentType(urlConnection.getContentType()));
 
+        } catch (IOException e) {
+            // As for GET requests, so that callers can tell a rejected request from a failed one.
+            if (urlConnection.getResponseCode() != -1) {
+                InputStream errorInputStream = new BufferedInputStream(urlConnection.getErrorStream());
+                throw new HttpException(
+                        IOUtils.stringFromInputSteam(errorInputStream, ASSUMED_RESPONSE_ENCODING),
+                        HttpStatusCode.getForIntCode(urlConnection.getResponseCode()), e);
+            } else {
+                throw e;
+            }
         } finally {
             urlConnection.disconnect();
         }
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A FutureTask to which listeners can be attached, and from which dependent computations can be
+ * composed, without blocking a thread while waiting for it to complete.
+ */
+public class ComposableFuture<V> extends FutureTask<V> {
+
+    // Listeners waiting for completion, along with the Executors on which to run them. Once the
+    // computation is done, listeners are run as soon as they are added.
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private List<Executor> listenerExecutors = new ArrayList<Executor>();
+    private boolean listenersRun = false;
+
+    /*** Constructors ***/
+
+    public ComposableFuture(Callable<V> callable) {
+        super(callable);
+    }
+
+    /*** Listeners ***/
+
+    /**
+     * Adds a listener to be run on the given Executor once this computation completes, whether
+     * successfully, exceptionally or by cancellation.
+     */
+    public void addListener(Runnable listener, Executor executor) {
+        synchronized (this.listeners) {
+            if (!this.listenersRun) {
+                this.listeners.add(listener);
+                this.listenerExecutors.add(executor);
+                return;
+            }
+        }
+        executor.execute(listener);
+    }
+
+    /**
+     * Adds a callback to be run on the given Executor with the result of this computation once it
+     * completes.
+     */
+    public void addCallback(final Callback<? super V> callback, Executor executor) {
+        this.addListener(new Runnable() {
+            @Override
+            public void run() {
+                V result;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    callback.onFailure(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    callback.onFailure(e);
+                    return;
+                } catch (InterruptedException e) {
+                    // We are only run once the computation is done, so this can't occur.
+                    throw new IllegalStateException(e);
+                }
+                callback.onSuccess(result);
+            }
+        }, executor);
+    }
+
+    /**
+     * Adds a callback to be run with the result of this computation once it completes, on whichever
+     * thread completes it. The callback should therefore be short.
+     */
+    public void addCallback(Callback<? super V> callback) {
+        this.addCallback(callback, DirectExecutor.INSTANCE);
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> listenersToRun;
+        List<Executor> executorsToUse;
+
+        synchronized (this.listeners) {
+            this.listenersRun = true;
+            listenersToRun = new ArrayList<Runnable>(this.listeners);
+            executorsToUse = new ArrayList<Executor>(this.listenerExecutors);
+            this.listeners.clear();
+            this.listenerExecutors.clear();
+        }
+
+        for (int i = 0; i < listenersToRun.size(); i++) {
+            executorsToUse.get(i).execute(listenersToRun.get(i));
+        }
+    }
+
+    /*** Composition ***/
+
+    /**
+     * Returns a future for the result of applying the given transformation to the result of this
+     * computation. The transformation is run on the given Executor once this computation completes.
+     * If this computation fails, the returned future fails with the same cause.
+     */
+    public <T> ComposableFuture<T> then(final Transformation<? super V, T> transformation,
+                                        Executor executor) {
+        final ComposableFuture<T> transformed = new ComposableFuture<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return transformation.apply(ConcurrencyUtils.getResult(ComposableFuture.this));
+            }
+        });
+
+        this.addListener(transformed, executor);
+
+        return transformed;
+    }
+
+    /**
+     * Returns a future for the results of all the given futures, in the same order. The returned
+     * future completes once all of the given futures have completed, and fails if any of them
+     * failed. No thread is blocked while waiting for the given futures.
+     */
+    public static <V> ComposableFuture<List<V>> allOf(
+            final List<? extends ComposableFuture<? extends V>> futures) {
+
+        final ComposableFuture<List<V>> combined = new ComposableFuture<List<V>>(
+                new Callable<List<V>>() {
+                    @Override
+                    public List<V> call() throws Exception {
+                        List<V> results = new ArrayList<V>(futures.size());
+                        for (ComposableFuture<? extends V> currentFuture : futures) {
+                            results.add(ConcurrencyUtils.getResult(currentFuture));
+                        }
+                        return Collections.unmodifiableList(results);
+                    }
+                });
+
+        if (futures.isEmpty()) {
+            combined.run();
+            return combined;
+        }
+
+        final AtomicInteger numRemaining = new AtomicInteger(futures.size());
+
+        Runnable onOneComplete = new Runnable() {
+            @Override
+            public void run() {
+                if (numRemaining.decrementAndGet() == 0) {
+                    combined.run();
+                }
+            }
+        };
+
+        for (ComposableFuture<? extends V> currentFuture : futures) {
+            currentFuture.addListener(onOneComplete, DirectExecutor.INSTANCE);
+        }
+
+        return combined;
+    }
+
+    /**
+     * Callback for the result of a ComposableFuture.
+     */
+    public static interface Callback<V> {
+
+        public void onSuccess(V result);
+
+        public void onFailure(Throwable cause);
+
+    }
+
+    /**
+     * A computation applied to the result of a ComposableFuture.
+     */
+    public static interface Transformation<F, T> {
+
+        public T apply(F input) throws Exception;
+
+    }
+
+    /**
+     * Executor running each task immediately on the calling thread.
+     */
+    private static enum DirectExecutor implements Executor {
+        INSTANCE;
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class with static utility methods for working with threads and Futures.
+ */
+public class ConcurrencyUtils {
+
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private ConcurrencyUtils() {
+    }
+
+    /**
+     * Waits for the given Future to complete and returns its result. If the computation threw an
+     * IOException or an unchecked exception, that exception is rethrown as-is so that callers can
+     * treat the result as though they had performed the computation themselves. If the waiting
+     * thread is interrupted, an InterruptedIOException is thrown and the interrupt flag restored.
+     */
+    public static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException();
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Cancels each of the given Futures, interrupting them if they are running.
+     */
+    public static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> currentFuture : futures) {
+            currentFuture.cancel(true);
+        }
+    }
+
+    /**
+     * Creates a thread pool with at most the given number of threads. Threads are only created as
+     * work is submitted, and are allowed to die after a period of idleness, so an unused pool
+     * holds no threads.
+     */
+    public static ThreadPoolExecutor newBoundedThreadPool(int maxThreads, String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a single threaded executor for running delayed tasks. As with
+     * {@link #newBoundedThreadPool}, the thread is allowed to die after a period of idleness.
+     */
+    public static ScheduledThreadPoolExecutor newSingleThreadScheduledExecutor(
+            String threadNamePrefix) {
+        ScheduledThreadPoolExecutor executor
+                = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(threadNamePrefix));
+        executor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * ThreadFactory producing daemon threads with a common name prefix, so that worker threads
+     * are identifiable in a thread dump and don't prevent the process from exiting.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String threadNamePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedThreadFactory(String threadNamePrefix) {
+            this.threadNamePrefix = threadNamePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                    this.threadNamePrefix + "-" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
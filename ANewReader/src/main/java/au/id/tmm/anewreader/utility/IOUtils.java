@@ -60,6 +60,23 @@ public class IOUtils {
 
     }
 
+    /**
+     * Append the given string to the given file using the given encoding, creating the file if it
+     * doesn't exist.
+     * @throws IOException
+     */
+    public static void appendStringToFile(File file, String encoding, String string) throws IOException {
+
+        OutputStream outputStream = new FileOutputStream(file, true);
+
+        try {
+            outputStream.write(string.getBytes(encoding));
+        } finally {
+            outputStream.close();
+        }
+
+    }
+
     /**
      * Takes a string from an InputStream. The given inputStream should be buffered (when
      * appropriate) before being passed to this method.
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.utility;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from primitive int keys to values, kept in insertion or access order like a
+ * {@link java.util.LinkedHashMap}, but without boxing keys or allocating an entry per mapping.
+ * <p/>
+ * Keys and values are held in arrays using open addressing with linear probing, with removed
+ * slots marked rather than emptied so that slots never move. The order of the mappings is kept as
+ * a doubly linked list of slot indexes, in two further arrays. The arrays are rebuilt, doubling in
+ * size if needed, once used and removed slots fill half of them.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class IntLinkedHashMap<V> implements Iterable<V> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int NONE = -1;
+
+    private final boolean accessOrder;
+
+    private int[] keys;
+    private Object[] values;
+    private byte[] states;
+    private int[] previous;
+    private int[] next;
+
+    private int head = NONE;
+    private int tail = NONE;
+
+    private int size = 0;
+    private int numRemovedSlots = 0;
+
+    /**
+     * Constructs a map with room for at least the given number of mappings before it grows. If
+     * accessOrder is true, retrieving a mapping moves it to the end of the order, so that the
+     * least recently used mapping is first.
+     */
+    public IntLinkedHashMap(int initialCapacity, boolean accessOrder) {
+        this.accessOrder = accessOrder;
+        this.allocate(tableSizeFor(initialCapacity));
+    }
+
+    public IntLinkedHashMap(boolean accessOrder) {
+        this(DEFAULT_INITIAL_CAPACITY, accessOrder);
+    }
+
+    public IntLinkedHashMap() {
+        this(false);
+    }
+
+    /*** Accessors and mutators ***/
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = this.findSlot(key);
+
+        if (slot == NONE) {
+            return null;
+        }
+
+        if (this.accessOrder) {
+            this.moveToEnd(slot);
+        }
+
+        return (V) this.values[slot];
+    }
+
+    /**
+     * Maps the given key to the given value, returning the value it was previously mapped to, or
+     * null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        int slot = this.findSlot(key);
+
+        if (slot != NONE) {
+            V previousValue = (V) this.values[slot];
+            this.values[slot] = value;
+
+            if (this.accessOrder) {
+                this.moveToEnd(slot);
+            }
+
+            return previousValue;
+        }
+
+        if ((this.size + this.numRemovedSlots + 1) * 2 > this.keys.length) {
+            this.rebuild();
+        }
+
+        slot = this.findFreeSlot(key);
+
+        if (this.states[slot] == REMOVED) {
+            this.numRemovedSlots--;
+        }
+
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.states[slot] = USED;
+        this.linkAtEnd(slot);
+        this.size++;
+
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the given key, returning its value, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = this.findSlot(key);
+
+        if (slot == NONE) {
+            return null;
+        }
+
+        V removedValue = (V) this.values[slot];
+        this.removeSlot(slot);
+
+        return removedValue;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns an iterator over the values in order, whose remove method removes the mapping of the
+     * last value returned. Iterating doesn't change the access order.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+
+            private int nextSlot = head;
+            private int lastSlot = NONE;
+
+            @Override
+            public boolean hasNext() {
+                return this.nextSlot != NONE;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (this.nextSlot == NONE) {
+                    throw new NoSuchElementException();
+                }
+
+                this.lastSlot = this.nextSlot;
+                this.nextSlot = IntLinkedHashMap.this.next[this.nextSlot];
+
+                return (V) values[this.lastSlot];
+            }
+
+            @Override
+            public void remove() {
+                if (this.lastSlot == NONE) {
+                    throw new IllegalStateException();
+                }
+
+                removeSlot(this.lastSlot);
+                this.lastSlot = NONE;
+            }
+        };
+    }
+
+    /*** Table ***/
+
+    private void allocate(int tableSize) {
+        this.keys = new int[tableSize];
+        this.values = new Object[tableSize];
+        this.states = new byte[tableSize];
+        this.previous = new int[tableSize];
+        this.next = new int[tableSize];
+    }
+
+    /**
+     * Returns the slot holding the given key, or NONE if there isn't one.
+     */
+    private int findSlot(int key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (this.states[slot] != FREE) {
+            if (this.states[slot] == USED && this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Returns the first free or removed slot at or after the home slot of the given key, which
+     * mustn't be in the table.
+     */
+    private int findFreeSlot(int key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+
+        while (this.states[slot] == USED) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void removeSlot(int slot) {
+        this.unlink(slot);
+        this.values[slot] = null;
+        this.states[slot] = REMOVED;
+        this.size--;
+        this.numRemovedSlots++;
+    }
+
+    /**
+     * Rebuilds the table without removed slots, doubling its size if it is more than a quarter
+     * full, and keeping the order of the mappings.
+     */
+    private void rebuild() {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        int[] oldNext = this.next;
+        int oldHead = this.head;
+
+        int newTableSize = (this.size + 1) * 4 > oldKeys.length
+                ? oldKeys.length * 2
+                : oldKeys.length;
+
+        this.allocate(newTableSize);
+        this.head = NONE;
+        this.tail = NONE;
+        this.numRemovedSlots = 0;
+
+        for (int oldSlot = oldHead; oldSlot != NONE; oldSlot = oldNext[oldSlot]) {
+            int slot = this.findFreeSlot(oldKeys[oldSlot]);
+
+            this.keys[slot] = oldKeys[oldSlot];
+            this.values[slot] = oldValues[oldSlot];
+            this.states[slot] = USED;
+            this.linkAtEnd(slot);
+        }
+    }
+
+    /*** Order ***/
+
+    private void linkAtEnd(int slot) {
+        this.previous[slot] = this.tail;
+        this.next[slot] = NONE;
+
+        if (this.tail != NONE) {
+            this.next[this.tail] = slot;
+        } else {
+            this.head = slot;
+        }
+
+        this.tail = slot;
+    }
+
+    private void unlink(int slot) {
+        int previousSlot = this.previous[slot];
+        int nextSlot = this.next[slot];
+
+        if (previousSlot != NONE) {
+            this.next[previousSlot] = nextSlot;
+        } else {
+            this.head = nextSlot;
+        }
+
+        if (nextSlot != NONE) {
+            this.previous[nextSlot] = previousSlot;
+        } else {
+            this.tail = previousSlot;
+        }
+    }
+
+    private void moveToEnd(int slot) {
+        if (this.tail != slot) {
+            this.unlink(slot);
+            this.linkAtEnd(slot);
+        }
+    }
+
+    /**
+     * Spreads the bits of the key, so that runs of consecutive keys don't form long probe
+     * sequences.
+     */
+    private static int hash(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int tableSize = DEFAULT_INITIAL_CAPACITY;
+
+        // The table is kept no more than half full.
+        while (tableSize < capacity * 2) {
+            tableSize *= 2;
+        }
+
+        return tableSize;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies in milliseconds. Each bucket counts the latencies no greater
+ * than its upper bound and greater than that of the previous bucket, with a final bucket for
+ * latencies greater than every bound. Recording a latency doesn't block.
+ */
+public class LatencyHistogram {
+
+    // Doubling from 25ms to a little under 13 seconds.
+    private static final long[] DEFAULT_BUCKET_BOUNDS_MILLIS
+            = {25, 50, 100, 200, 400, 800, 1600, 3200, 6400, 12800};
+
+    private long[] bucketBoundsMillis;
+    private AtomicLongArray bucketCounts;
+
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong totalMillis = new AtomicLong();
+    private AtomicLong maxMillis = new AtomicLong();
+
+    /**
+     * Constructs a histogram with the given ascending upper bounds for its buckets.
+     */
+    public LatencyHistogram(long[] bucketBoundsMillis) {
+        for (int i = 1; i < bucketBoundsMillis.length; i++) {
+            if (bucketBoundsMillis[i] <= bucketBoundsMillis[i - 1]) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        this.bucketBoundsMillis = bucketBoundsMillis.clone();
+        this.bucketCounts = new AtomicLongArray(bucketBoundsMillis.length + 1);
+    }
+
+    public LatencyHistogram() {
+        this(DEFAULT_BUCKET_BOUNDS_MILLIS);
+    }
+
+    public void record(long latencyMillis) {
+        int bucket = 0;
+
+        while (bucket < this.bucketBoundsMillis.length
+                && latencyMillis > this.bucketBoundsMillis[bucket]) {
+            bucket++;
+        }
+
+        this.bucketCounts.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.totalMillis.addAndGet(latencyMillis);
+
+        long currentMax = this.maxMillis.get();
+        while (latencyMillis > currentMax
+                && !this.maxMillis.compareAndSet(currentMax, latencyMillis)) {
+            currentMax = this.maxMillis.get();
+        }
+    }
+
+    /**
+     * Returns the upper bounds of the buckets, excluding the final unbounded bucket.
+     */
+    public long[] getBucketBoundsMillis() {
+        return this.bucketBoundsMillis.clone();
+    }
+
+    /**
+     * Returns a copy of the count of each bucket, the last being the unbounded bucket. As
+     * latencies may be recorded while this is copied, the counts are only approximately
+     * consistent with each other and with {@link #getCount}.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[this.bucketCounts.length()];
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.bucketCounts.get(i);
+        }
+
+        return counts;
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getTotalMillis() {
+        return this.totalMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return this.maxMillis.get();
+    }
+
+    /**
+     * Returns an estimate of the latency below which the given proportion of latencies fall,
+     * being the upper bound of the bucket in which that proportion is reached. If it is reached
+     * in the unbounded bucket, the maximum latency is returned.
+     */
+    public long getPercentileMillis(double proportion) {
+        long[] counts = this.getBucketCounts();
+
+        long total = 0;
+        for (long currentCount : counts) {
+            total += currentCount;
+        }
+
+        long threshold = (long) Math.ceil(proportion * total);
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < this.bucketBoundsMillis.length; i++) {
+            cumulativeCount += counts[i];
+
+            if (cumulativeCount >= threshold && cumulativeCount > 0) {
+                return this.bucketBoundsMillis[i];
+            }
+        }
+
+        return this.getMaxMillis();
+    }
+
+}
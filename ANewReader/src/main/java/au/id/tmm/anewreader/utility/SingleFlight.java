@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This file is part of A New Reader
+ * Copyright (C) 2013 Timothy McCarthy
+ *
+ * A New Reader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * A New Reader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with A New Reader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package au.id.tmm.anewreader.utility;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent computations of the same key. While a computation for a key is in flight,
+ * any other thread requesting the same key waits for and shares its result rather than performing
+ * the computation again. Once the computation completes the key is forgotten, so results are not
+ * cached beyond the lifetime of the computation.
+ */
+public class SingleFlight<K, V> {
+
+    private ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Returns the result of the given computation for the given key. If a computation for an equal
+     * key is already in flight, its result is returned instead. The computation is performed on the
+     * calling thread. Exceptions thrown by the computation are rethrown to every caller sharing it,
+     * as per {@link au.id.tmm.anewreader.utility.ConcurrencyUtils#getResult}.
+     */
+    public V execute(K key, Callable<V> computation) throws IOException {
+        FutureTask<V> newTask = new FutureTask<V>(computation);
+        FutureTask<V> existingTask = this.inFlight.putIfAbsent(key, newTask);
+
+        if (existingTask != null) {
+            return ConcurrencyUtils.getResult(existingTask);
+        }
+
+        try {
+            newTask.run();
+            return ConcurrencyUtils.getResult(newTask);
+        } finally {
+            this.inFlight.remove(key, newTask);
+        }
+    }
+
+}
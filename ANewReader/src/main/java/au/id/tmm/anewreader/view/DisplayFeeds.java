@@ -66,16 +66,25 @@ public class DisplayFeeds {
 
             @Override
             protected List<Feed> doInBackground(Void... voids) {
+                List<Feed> returnedFeeds = new ArrayList<Feed>();
+
                 try {
-                    List<Feed> returnedFeeds = new ArrayList<Feed>();
                     returnedFeeds.add(account.getReadingList(context.getString(R.string.all_items)));
                     returnedFeeds.addAll(account.getCategories());
-                return returnedFeeds;
                 } catch (Throwable t) {
                     this.onCancelCause = t;
                     this.cancel(false);
                     return null;
                 }
+
+                try {
+                    account.refreshUnreadCounts();
+                } catch (Throwable t) {
+                    // The unread counts are only shown alongside the feeds, so the feeds are shown
+                    // without them.
+                }
+
+                return returnedFeeds;
             }
 
             @Override
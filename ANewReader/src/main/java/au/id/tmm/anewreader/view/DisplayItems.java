@@ -20,15 +20,19 @@ package au.id.tmm.anewreader.view;
 
 import android.os.AsyncTask;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import au.id.tmm.anewreader.model.Continuation;
 import au.id.tmm.anewreader.model.Feed;
 import au.id.tmm.anewreader.model.Item;
 import au.id.tmm.anewreader.model.ListWithContinuation;
 import au.id.tmm.anewreader.model.ReadStatus;
+import au.id.tmm.anewreader.model.SyncScheduler;
 
 /**
  * Singleton class for simplifying the handling of the Items to displayed. Items are loaded and
@@ -45,7 +49,10 @@ public class DisplayItems {
 
     private List<DisplayItemsListener> listeners = new LinkedList<DisplayItemsListener>();
 
-    private boolean loadingItems = false;
+    // The number of loads in progress, during which the background sync is suspended so as not
+    // to compete with them. Only accessed on the UI thread, as are the fields below it.
+    private int numLoads = 0;
+    private SyncScheduler syncScheduler;
 
     private List<Item> loadedItems;
     private Feed feed;
@@ -82,7 +89,7 @@ public class DisplayItems {
             @Override
             protected void onPreExecute() {
 
-                loadingItems = true;
+                beginLoading();
 
                 for (DisplayItemsListener currentListener : listeners) {
                     currentListener.onPopulatePreExecute();
@@ -118,7 +125,7 @@ public class DisplayItems {
                     currentListener.onPopulateComplete();
                 }
 
-                loadingItems = false;
+                endLoading();
             }
 
             @Override
@@ -126,7 +133,7 @@ public class DisplayItems {
                 for (DisplayItemsListener currentListener : listeners) {
                     currentListener.onPopulateError(this.onCancelCause);
                 }
-                loadingItems = false;
+                endLoading();
             }
         }.execute();
     }
@@ -148,7 +155,7 @@ public class DisplayItems {
 
                 @Override
                 protected void onPreExecute() {
-                    loadingItems = true;
+                    beginLoading();
                     for (DisplayItemsListener currentListener : listeners) {
                         currentListener.onLoadMoreItemsPreExecute();
                     }
@@ -180,7 +187,7 @@ public class DisplayItems {
                     for (DisplayItemsListener currentListener : listeners) {
                         currentListener.onLoadMoreItemsComplete(newItemsWithContinuation.getList());
                     }
-                    loadingItems = false;
+                    endLoading();
                 }
 
                 @Override
@@ -188,7 +195,7 @@ public class DisplayItems {
                     for (DisplayItemsListener currentListener : listeners) {
                         currentListener.onLoadMoreItemsError(this.onCancelCause);
                     }
-                    loadingItems = false;
+                    endLoading();
                 }
             }.execute();
 
@@ -197,16 +204,26 @@ public class DisplayItems {
     }
 
     /**
-     * Refresh the list of displayed items.
+     * Refresh the list of displayed items. Where possible, only the Items newer than those already
+     * loaded are retrieved, and these are added to the start of the list. If the loaded Items are
+     * bounded by an olderThan date, or there are too many new Items to retrieve in one request,
+     * the list is reloaded from scratch.
      */
     public void refresh() {
         new AsyncTask<Void, RefreshProgress, ListWithContinuation<Item>>() {
 
             private Throwable onCancelCause;
 
+            private Date newestLoadedTimestamp;
+            private boolean fullReload;
+
             @Override
             protected void onPreExecute() {
-                loadingItems = true;
+                beginLoading();
+
+                if (loadedItems != null && previousModelRequestParams.olderThan == null) {
+                    this.newestLoadedTimestamp = getNewestCrawlTimestamp(loadedItems);
+                }
 
                 for (DisplayItemsListener currentListener : listeners) {
                     currentListener.onRefreshPreExecute();
@@ -216,6 +233,19 @@ public class DisplayItems {
             @Override
             protected ListWithContinuation<Item> doInBackground(Void... params) {
                 try {
+                    if (this.newestLoadedTimestamp != null) {
+                        ListWithContinuation<Item> newItems = feed.getItemsNewerThan(
+                                previousModelRequestParams.readStatus, this.newestLoadedTimestamp,
+                                DEFAULT_NUM_ITEMS_PER_LOAD);
+
+                        // A continuation means there are new Items we haven't retrieved, which
+                        // would leave a gap in the list.
+                        if (newItems.getContinuation() == null) {
+                            return newItems;
+                        }
+                    }
+
+                    this.fullReload = true;
                     return feed.getItems(previousModelRequestParams.readStatus, previousModelRequestParams.olderThan);
                 } catch (Throwable t) {
                     this.onCancelCause = t;
@@ -233,13 +263,18 @@ public class DisplayItems {
 
             @Override
             protected void onPostExecute(ListWithContinuation<Item> itemsWithContinuation) {
-                continuation = itemsWithContinuation.getContinuation();
-                loadedItems = itemsWithContinuation.getList();
+                if (this.fullReload) {
+                    continuation = itemsWithContinuation.getContinuation();
+                    loadedItems = itemsWithContinuation.getList();
+                } else {
+                    prependNewItems(itemsWithContinuation.getList());
+                }
+
                 for (DisplayItemsListener currentListener : listeners) {
                     currentListener.onRefreshComplete();
                 }
 
-                loadingItems = false;
+                endLoading();
             }
 
             @Override
@@ -248,11 +283,46 @@ public class DisplayItems {
                     currentListener.onRefreshError(this.onCancelCause);
                 }
 
-                loadingItems = false;
+                endLoading();
             }
         }.execute();
     }
 
+    /**
+     * Returns the latest crawl timestamp of the given Items, or null if none of them have one.
+     */
+    private static Date getNewestCrawlTimestamp(List<Item> items) {
+        Date newestTimestamp = null;
+
+        for (Item currentItem : items) {
+            Date currentTimestamp = currentItem.getCrawlTimestamp();
+            if (currentTimestamp != null
+                    && (newestTimestamp == null || currentTimestamp.after(newestTimestamp))) {
+                newestTimestamp = currentTimestamp;
+            }
+        }
+
+        return newestTimestamp;
+    }
+
+    /**
+     * Adds the given Items to the start of the loaded Items, skipping any already loaded. Items
+     * crawled in the same second as the newest loaded Item are returned again by the api, hence
+     * the need to check.
+     */
+    private void prependNewItems(List<Item> newItems) {
+        Set<Item> alreadyLoaded = new HashSet<Item>(this.loadedItems);
+        List<Item> itemsToAdd = new ArrayList<Item>(newItems.size());
+
+        for (Item currentItem : newItems) {
+            if (!alreadyLoaded.contains(currentItem)) {
+                itemsToAdd.add(currentItem);
+            }
+        }
+
+        this.loadedItems.addAll(0, itemsToAdd);
+    }
+
     public void registerListener(DisplayItemsListener listener) {
         this.listeners.add(listener);
     }
@@ -301,7 +371,35 @@ public class DisplayItems {
     }
 
     public boolean isLoadingItems() {
-        return loadingItems;
+        return this.numLoads > 0;
+    }
+
+    /**
+     * Sets the SyncScheduler to suspend while Items are loading, or null if there is none.
+     */
+    public void setSyncScheduler(SyncScheduler syncScheduler) {
+        if (this.isLoadingItems()) {
+            if (this.syncScheduler != null) {
+                this.syncScheduler.resume();
+            }
+            if (syncScheduler != null) {
+                syncScheduler.suspend();
+            }
+        }
+
+        this.syncScheduler = syncScheduler;
+    }
+
+    private void beginLoading() {
+        if (this.numLoads++ == 0 && this.syncScheduler != null) {
+            this.syncScheduler.suspend();
+        }
+    }
+
+    private void endLoading() {
+        if (--this.numLoads == 0 && this.syncScheduler != null) {
+            this.syncScheduler.resume();
+        }
     }
 
     // Enums containing values indicating progress for the populate, loadMore and refresh
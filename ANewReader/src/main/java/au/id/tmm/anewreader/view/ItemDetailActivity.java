@@ -45,7 +45,24 @@ public class ItemDetailActivity extends FragmentActivity {
 
         ViewPager pager = (ViewPager) this.findViewById(R.id.item_view_pager);
         pager.setAdapter(itemAdapter);
+        pager.setOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                markItemAsRead(position);
+            }
+        });
         pager.setCurrentItem(initialItem);
 
+        // The listener isn't notified of the initially displayed Item.
+        this.markItemAsRead(initialItem);
+    }
+
+    /**
+     * Marks the displayed Item at the given position as read. This only queues the change to be
+     * sent to the api, so doesn't hold up swiping between Items.
+     */
+    private void markItemAsRead(int position) {
+        DisplayItems displayItems = DisplayItems.getInstance();
+        displayItems.getFeed().markAsRead(displayItems.getLoadedItems().get(position));
     }
 }
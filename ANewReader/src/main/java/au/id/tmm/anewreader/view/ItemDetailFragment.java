@@ -18,6 +18,7 @@
 
 package au.id.tmm.anewreader.view;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.text.Html;
@@ -28,6 +29,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.io.IOException;
+
 import au.id.tmm.anewreader.R;
 import au.id.tmm.anewreader.model.Item;
 
@@ -64,16 +67,74 @@ public class ItemDetailFragment extends Fragment {
                 item.getParentSubscription().getHtmlUrl())));
         subscriptionTitle.setMovementMethod(LinkMovementMethod.getInstance());
 
+        // If the summary is no longer in memory, it is loaded in the background.
+        String summary = item.getLoadedSummary();
+
+        if (summary != null) {
+            this.setContent(content, summary);
+        } else {
+            new SummaryLoaderAsyncTask(content).execute();
+        }
+
+        return view;
+
+    }
+
+    private void setContent(TextView content, String summary) {
         UrlImageGetter imageGetter = new UrlImageGetter(content, this.getActivity());
 
-        Spanned htmlSpan = Html.fromHtml(item.getSummary(), imageGetter, null);
+        Spanned htmlSpan = Html.fromHtml(summary, imageGetter, null);
         content.setText(htmlSpan);
         content.setMovementMethod(LinkMovementMethod.getInstance());
+    }
 
-        return view;
-
+    private class SummaryLoaderAsyncTask extends AsyncTask<Void, Void, String> {
+
+        private final TextView content;
+
+        public SummaryLoaderAsyncTask(TextView content) {
+            this.content = content;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                return item.getSummary();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            // The fragment may have been removed while the summary was loading.
+            if (!isAdded()) {
+                return;
+            }
+
+            if (summary == null) {
+                this.content.setText(R.string.content_load_error_message);
+                this.content.setOnClickListener(onContentErrorClickListener);
+            } else {
+                setContent(this.content, summary);
+            }
+        }
     }
 
+    /**
+     * Retries loading the summary after it failed to load.
+     */
+    private View.OnClickListener onContentErrorClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            TextView content = (TextView) view;
+
+            content.setOnClickListener(null);
+            content.setText(R.string.ellipses);
+            new SummaryLoaderAsyncTask(content).execute();
+        }
+    };
+
     private String linkWithText(String text, String link) {
         return "<a href=" + link + ">" + text + "</a>";
     }
@@ -30,6 +30,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -38,6 +39,8 @@ import au.id.tmm.anewreader.model.Account;
 import au.id.tmm.anewreader.model.Feed;
 import au.id.tmm.anewreader.model.Item;
 import au.id.tmm.anewreader.model.PreviousAccountInfoFile;
+import au.id.tmm.anewreader.model.ReadingList;
+import au.id.tmm.anewreader.model.SyncScheduler;
 import au.id.tmm.anewreader.utility.network.AuthenticationException;
 import au.id.tmm.anewreader.utility.network.HttpException;
 import au.id.tmm.anewreader.utility.network.HttpStatusCode;
@@ -51,6 +54,8 @@ public class MainActivity extends FragmentActivity {
 
     private static final int AUTHENTICATE_ACTIVITY_REQUEST_CODE = 0;
     private static final String DEFAULT_INFOFILE_FILENAME = "account-info";
+    private static final String DEFAULT_OFFLINE_STORE_DIRECTORY = "offline-store";
+    private static final String DEFAULT_ITEM_DISK_CACHE_DIRECTORY = "items";
 
     private FeedArrayAdapter feedArrayAdapter;
     private ItemArrayAdapter itemArrayAdapter;
@@ -161,8 +166,43 @@ public class MainActivity extends FragmentActivity {
      * Called once we have an account that has been authenticated (ie it is logged in).
      */
     private void onHaveAuthenticatedAccount(Account authenticatedAccount) {
+        if (this.account != null) {
+            this.account.getSyncScheduler().stop();
+        }
+
+        // Each Account has its own store and disk cache, so that signing in as another user
+        // doesn't show the Feeds and Items of the previous one.
+        String storageName = authenticatedAccount.getStorageName();
+
+        authenticatedAccount.useOfflineStore(new File(
+                new File(this.getFilesDir(), DEFAULT_OFFLINE_STORE_DIRECTORY), storageName));
+        authenticatedAccount.useItemDiskCache(new File(
+                new File(this.getCacheDir(), DEFAULT_ITEM_DISK_CACHE_DIRECTORY), storageName));
         this.account = authenticatedAccount;
         this.populateViews();
+        this.startBackgroundSync();
+    }
+
+    /**
+     * Starts synchronising the Account in the background, beginning with the reading list. The
+     * synchronisation is suspended whenever we are loading Items.
+     */
+    private void startBackgroundSync() {
+        SyncScheduler syncScheduler = this.account.getSyncScheduler();
+
+        DisplayItems.getInstance().setSyncScheduler(syncScheduler);
+        syncScheduler.addFeed(DisplayItems.getInstance().getFeed());
+        syncScheduler.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (this.account != null) {
+            this.account.getSyncScheduler().stop();
+            DisplayItems.getInstance().setSyncScheduler(null);
+        }
     }
 
     /**
@@ -237,8 +277,18 @@ public class MainActivity extends FragmentActivity {
         @Override
         public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
             ((DrawerLayout) findViewById(R.id.drawer_layout_parent)).closeDrawers();
-            DisplayItems.getInstance().setFeed((Feed) adapterView.getItemAtPosition(position));
+            Feed selectedFeed = (Feed) adapterView.getItemAtPosition(position);
+            Feed previousFeed = DisplayItems.getInstance().getFeed();
+            DisplayItems.getInstance().setFeed(selectedFeed);
             DisplayItems.getInstance().populate();
+
+            // Besides the reading list, only the displayed Feed is synchronised.
+            SyncScheduler syncScheduler = account.getSyncScheduler();
+            if (previousFeed != null && !previousFeed.equals(selectedFeed)
+                    && !(previousFeed instanceof ReadingList)) {
+                syncScheduler.removeFeed(previousFeed);
+            }
+            syncScheduler.addFeed(selectedFeed);
         }
     };
 